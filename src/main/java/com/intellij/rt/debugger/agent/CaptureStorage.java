@@ -4,13 +4,9 @@ package com.intellij.rt.debugger.agent;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 @SuppressWarnings({"UseOfSystemOutOrSystemErr"})
 public final class CaptureStorage {
@@ -46,6 +42,8 @@ public final class CaptureStorage {
   static class ThreadLocalContext {
     final OverheadDetector.OverheadTracker overheadTracker = ourOverheadDetector.createOverheadTracker();
     boolean throwableCaptureDisabled = false;
+    // Nesting of conditional and logging breakpoints evaluation, see InstrumentationBreakpointTransformer#enterBreakpointCheck
+    int breakpointCheckDepth = 0;
   }
 
   static final ThreadLocal<ThreadLocalContext> CURRENT_CONTEXT = new ThreadLocal<ThreadLocalContext>() {
@@ -259,7 +257,7 @@ public final class CaptureStorage {
     T call();
   }
 
-  private static boolean runWithOverheadTrackingAndWithoutThrowableCapture(ThreadLocalContext context, final Runnable runnable) {
+  static boolean runWithOverheadTrackingAndWithoutThrowableCapture(ThreadLocalContext context, final Runnable runnable) {
   // It's better to disable throwable instrumentation inside our own code for ease of debugging.
     boolean oldValue = context.throwableCaptureDisabled;
     context.throwableCaptureDisabled = true;
@@ -304,84 +302,6 @@ public final class CaptureStorage {
     return getCallerFrameMethod;
   }
 
-  private static class ConcurrentIdentityWeakHashMap<K, V> {
-    private final ReferenceQueue<K> referenceQueue = new ReferenceQueue<>();
-    private final ConcurrentMap<Key<K>, V> map = new ConcurrentHashMap<>();
-
-    @SuppressWarnings("UnusedReturnValue")
-    public V put(K key, V value) {
-      processQueue();
-      return map.put(new WeakKey<>(key, referenceQueue), value);
-    }
-
-    public V get(K key) {
-      return map.get(new HardKey<>(key));
-    }
-
-    private void processQueue() {
-      WeakKey<K> key;
-      //noinspection unchecked
-      while ((key = (WeakKey<K>) referenceQueue.poll()) != null) {
-        map.remove(key);
-      }
-    }
-
-    private interface Key<K> {
-      K get();
-    }
-
-    private static boolean equalKeys(Key<?> x, Key<?> y) {
-      if (x == y) return true;
-      Object kx = x.get();
-      Object ky = y.get();
-      return kx != null && kx == ky;
-    }
-
-    // only for map queries
-    private static class HardKey<K> implements Key<K> {
-      private final K myKey;
-      private final int myHash;
-
-      HardKey(K key) {
-        myKey = key;
-        myHash = System.identityHashCode(key);
-      }
-
-      @Override
-      public K get() {
-        return myKey;
-      }
-
-      @Override
-      public boolean equals(Object o) {
-        return o instanceof Key<?> && equalKeys(this, (Key<?>) o);
-      }
-
-      public int hashCode() {
-        return myHash;
-      }
-    }
-
-    private static class WeakKey<K> extends WeakReference<K> implements Key<K> {
-      private final int myHash;
-
-      WeakKey(K key, ReferenceQueue<K> q) {
-        super(key, q);
-        myHash = System.identityHashCode(key);
-      }
-
-      @Override
-      public boolean equals(Object o) {
-        return o instanceof Key<?> && equalKeys(this, (Key<?>) o);
-      }
-
-      @Override
-      public int hashCode() {
-        return myHash;
-      }
-    }
-  }
-
   private static CapturedStack createCapturedStack(Throwable exception, CapturedStack insertMatch) {
     ExceptionCapturedStack exceptionStack = new ExceptionCapturedStack(exception);
     if (insertMatch != null) {
@@ -492,9 +412,17 @@ public final class CaptureStorage {
    * Returns the captured stack trace of the current thread.
    */
   static List<StackTraceElement> getCurrentCapturedStack(int limit) {
-    CapturedStack stack = getStacksForCurrentThread().peekLast();
-    if (stack == null) return null;
-    return getStackTrace(stack, limit);
+    return getCapturedStack(getCurrentCapturedStackHandle(), limit);
+  }
+
+  // The captured stack of the current thread to be resolved later with getCapturedStack, it is null if there is none.
+  static Object getCurrentCapturedStackHandle() {
+    return getStacksForCurrentThread().peekLast();
+  }
+
+  static List<StackTraceElement> getCapturedStack(Object handle, int limit) {
+    if (handle == null) return null;
+    return getStackTrace((CapturedStack)handle, limit);
   }
 
   // to be run from the debugger
@@ -526,7 +454,7 @@ public final class CaptureStorage {
   public static Map<Thread, String> getAllCapturedStacks(int limit) {
     HashMap<Thread, String> threadToStacks = new HashMap<>();
     if (storeAsyncStackTracesForAllThreads) {
-      for (Map.Entry<ConcurrentIdentityWeakHashMap.Key<Thread>, Deque<CapturedStack>> entry : THREAD_TO_STACKS_MAP.map.entrySet()) {
+      for (Map.Entry<ConcurrentIdentityWeakHashMap.Key<Thread>, Deque<CapturedStack>> entry : THREAD_TO_STACKS_MAP.entrySet()) {
         Thread thread = entry.getKey().get();
         if (entry.getValue() == null || entry.getValue().isEmpty() || !thread.isAlive()) continue;
         String capturedStack = wrapInString(entry.getValue().peekLast(), limit);
@@ -647,7 +575,11 @@ public final class CaptureStorage {
 
   static List<StackTraceElement> getCurrentStackTraceWithoutAgentFrames() {
     // Don't use Thread.currentThread().getStackTrace() because it adds extra frame.
-    return trimInitAgentFrames(Arrays.asList(new Throwable().getStackTrace()));
+    return getStackTraceWithoutAgentFrames(new Throwable());
+  }
+
+  static List<StackTraceElement> getStackTraceWithoutAgentFrames(Throwable throwable) {
+    return trimInitAgentFrames(Arrays.asList(throwable.getStackTrace()));
   }
 
   /** Expensive method, it should be used only for logging. */
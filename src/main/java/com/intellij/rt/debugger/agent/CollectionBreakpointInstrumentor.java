@@ -5,15 +5,24 @@ import org.jetbrains.capture.org.objectweb.asm.*;
 import org.jetbrains.capture.org.objectweb.asm.commons.LocalVariablesSorter;
 import org.jetbrains.capture.org.objectweb.asm.tree.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.security.ProtectionDomain;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.intellij.rt.debugger.agent.CaptureAgent.getInternalClsName;
@@ -22,9 +31,16 @@ import static com.intellij.rt.debugger.agent.CaptureAgent.getInternalClsName;
 public class CollectionBreakpointInstrumentor {
   private static final String OBJECT_TYPE = "Ljava/lang/Object;";
   private static final String STRING_TYPE = "Ljava/lang/String;";
-  private static final String MULTISET_TYPE = "Lcom/intellij/rt/debugger/agent/CollectionBreakpointInstrumentor$Multiset;";
+  private static final String SNAPSHOT_TYPE = "Lcom/intellij/rt/debugger/agent/CollectionBreakpointInstrumentor$CollectionSnapshot;";
   private static final String PAIR_TYPE = "Lcom/intellij/rt/debugger/agent/CollectionBreakpointInstrumentor$Pair;";
   private static final String COLLECTION_TYPE = "java/util/Collection";
+  private static final String LIST_TYPE = "java/util/List";
+  private static final String QUEUE_TYPE = "java/util/Queue";
+  private static final String DEQUE_TYPE = "java/util/Deque";
+  private static final String SORTED_SET_TYPE = "java/util/SortedSet";
+  private static final String NAVIGABLE_SET_TYPE = "java/util/NavigableSet";
+  private static final String SORTED_MAP_TYPE = "java/util/SortedMap";
+  private static final String NAVIGABLE_MAP_TYPE = "java/util/NavigableMap";
   private static final String MAP_TYPE = "java/util/Map";
   private static final String ABSTRACT_COLLECTION_TYPE = "java/util/AbstractCollection";
   private static final String ABSTRACT_LIST_TYPE = "java/util/AbstractList";
@@ -32,15 +48,48 @@ public class CollectionBreakpointInstrumentor {
   private static final String CAPTURE_COLLECTION_MODIFICATION_METHOD_NAME = "captureCollectionModification";
   private static final String CAPTURE_COLLECTION_MODIFICATION_METHOD_DESC = "(" + "Z" + "Z" + OBJECT_TYPE + OBJECT_TYPE + "Z" + ")V";
   private static final String CAPTURE_COLLECTION_MODIFICATION_DEFAULT_METHOD_NAME = "captureCollectionModification";
-  private static final String CAPTURE_COLLECTION_MODIFICATION_DEFAULT_METHOD_DESC = "(" + MULTISET_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_COLLECTION_MODIFICATION_DEFAULT_METHOD_DESC = "(" + SNAPSHOT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_REMOVALS_METHOD_NAME = "captureRemovals";
+  private static final String CAPTURE_REMOVALS_METHOD_DESC = "(" + "Z" + SNAPSHOT_TYPE + OBJECT_TYPE + ")V";
+  private static final String BEFORE_ADD_ALL_METHOD_NAME = "beforeAddAll";
+  private static final String BEFORE_ADD_ALL_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + ")[" + OBJECT_TYPE;
+  private static final String CAPTURE_ADDITIONS_METHOD_NAME = "captureAdditions";
+  private static final String CAPTURE_ADDITIONS_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + "[" + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_ELEMENT_MODIFICATION_METHOD_NAME = "captureElementModification";
+  private static final String CAPTURE_ELEMENT_MODIFICATION_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + "Z" + ")V";
+  private static final String CAPTURE_POLLED_ELEMENT_METHOD_NAME = "capturePolledElement";
+  private static final String CAPTURE_POLLED_ELEMENT_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_POLLED_ENTRY_METHOD_NAME = "capturePolledEntry";
+  private static final String CAPTURE_POLLED_ENTRY_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String BEFORE_KEY_MODIFICATION_METHOD_NAME = "beforeKeyModification";
+  private static final String BEFORE_KEY_MODIFICATION_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE;
+  private static final String CAPTURE_KEY_MODIFICATION_METHOD_NAME = "captureKeyModification";
+  private static final String CAPTURE_KEY_MODIFICATION_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String BEFORE_PUT_ALL_METHOD_NAME = "beforePutAll";
+  private static final String BEFORE_PUT_ALL_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE;
+  private static final String CAPTURE_PUT_ALL_METHOD_NAME = "capturePutAll";
+  private static final String CAPTURE_PUT_ALL_METHOD_DESC = "(" + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_CONDITIONAL_REMOVAL_METHOD_NAME = "captureConditionalRemoval";
+  private static final String CAPTURE_CONDITIONAL_REMOVAL_METHOD_DESC = "(" + "Z" + "Z" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_CONDITIONAL_REPLACEMENT_METHOD_NAME = "captureConditionalReplacement";
+  private static final String CAPTURE_CONDITIONAL_REPLACEMENT_METHOD_DESC =
+    "(" + "Z" + "Z" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_REPLACEMENT_METHOD_NAME = "captureReplacement";
+  private static final String CAPTURE_REPLACEMENT_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_PUT_IF_ABSENT_METHOD_NAME = "capturePutIfAbsent";
+  private static final String CAPTURE_PUT_IF_ABSENT_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String CAPTURE_ELEMENT_REPLACEMENT_METHOD_NAME = "captureElementReplacement";
+  private static final String CAPTURE_ELEMENT_REPLACEMENT_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")V";
+  private static final String WRAP_COLLECTION_METHOD_NAME = "wrapCollection";
+  private static final String WRAP_COLLECTION_METHOD_DESC = "(" + OBJECT_TYPE + STRING_TYPE + ")" + OBJECT_TYPE;
   private static final String CAPTURE_FIELD_MODIFICATION_METHOD_NAME = "captureFieldModification";
-  private static final String CAPTURE_FIELD_MODIFICATION_METHOD_DESC = "(" + OBJECT_TYPE + OBJECT_TYPE + STRING_TYPE + STRING_TYPE + "Z)V";
+  private static final String CAPTURE_FIELD_MODIFICATION_METHOD_DESC = "(" + OBJECT_TYPE + OBJECT_TYPE + "IZ)V";
   private static final String ON_CAPTURE_START_METHOD_NAME = "onCaptureStart";
   private static final String ON_CAPTURE_START_METHOD_DESC = "(" + OBJECT_TYPE + "Z)Z";
   private static final String ON_CAPTURE_END_METHOD_NAME = "onCaptureEnd";
   private static final String ON_CAPTURE_END_METHOD_DESC = "(" + OBJECT_TYPE + "Z)V";
   private static final String CAPTURE_COLLECTION_COPY_METHOD_NAME = "captureCollectionCopy";
-  private static final String CAPTURE_COLLECTION_COPY_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + ")" + MULTISET_TYPE;
+  private static final String CAPTURE_COLLECTION_COPY_METHOD_DESC = "(" + "Z" + OBJECT_TYPE + ")" + SNAPSHOT_TYPE;
   private static final String CONSTRUCTOR_METHOD_NAME = "<init>";
   private static final String CREATE_PAIR_METHOD_NAME = "createPair";
   private static final String CREATE_PAIR_METHOD_DESC = "(" + OBJECT_TYPE + OBJECT_TYPE + ")" + PAIR_TYPE;
@@ -49,7 +98,12 @@ public class CollectionBreakpointInstrumentor {
   private static final String JAVA_UTIL_PACKAGE_NAME = "java.util";
   private static final String OBJECT_CLASS_NAME = "java.lang.Object";
 
-  private static final ConcurrentIdentityHashMap myInstanceFilters = new ConcurrentIdentityHashMap();
+  // The value of a missing key, null values are allowed in maps.
+  private static final Object ABSENT = new Object();
+  // The value of a key which the map rejects.
+  private static final Object UNKNOWN = new Object();
+
+  private static final InstanceFilters myInstanceFilters = new InstanceFilters();
   private static final ConcurrentHashMap<String, Set<String>> myFieldsToCapture = new ConcurrentHashMap<>();
 
   private static final Map<String, KnownMethodsSet> myKnownMethods = new HashMap<>();
@@ -58,15 +112,26 @@ public class CollectionBreakpointInstrumentor {
   private static final Map<String, KnownMethodsSet> myCollectionsToTransform = new HashMap<>();
   private static final Set<String> myClassesToTransform = new HashSet<>();
   private static final ReentrantLock myTransformLock = new ReentrantLock();
+  private static final LoadedClassesIndex myLoadedClasses = new LoadedClassesIndex();
 
   @SuppressWarnings("StaticNonFinalField")
   public static boolean DEBUG; // set form debugger
 
   private static Instrumentation ourInstrumentation;
 
-  private static void initializeKnownMethods() {
+  /**
+   * Watched field values are replaced with proxies instead of transforming collection classes.
+   * Only fields of interface types are wrapped, so the field still accepts the proxy, but casts of the field value
+   * to the collection class, {@code instanceof} checks for it and {@code getClass()} see the proxy.
+   * Only modifications made by the methods known to the agent are captured, and collections implementing
+   * non-public interfaces are transformed as usual.
+   */
+  private static boolean ourProxyMode;
+
+  static void initializeKnownMethods() {
     KnownMethodsSet collectionKnownMethods = new KnownMethodsSet();
     collectionKnownMethods.add(new ImmutableMethod("size()I"));
+    collectionKnownMethods.add(new ImmutableMethod("isEmpty()Z"));
     collectionKnownMethods.add(new ImmutableMethod("contains(Ljava/lang/Object;)Z"));
     collectionKnownMethods.add(new ImmutableMethod("iterator()Ljava/util/Iterator;"));
     collectionKnownMethods.add(new ImmutableMethod("toArray()[Ljava/lang/Object;"));
@@ -79,8 +144,59 @@ public class CollectionBreakpointInstrumentor {
     collectionKnownMethods.add(new ImmutableMethod("hashCode()I"));
     collectionKnownMethods.add(new ReturnsBooleanMethod("add(Ljava/lang/Object;)Z", true));
     collectionKnownMethods.add(new ReturnsBooleanMethod("remove(Ljava/lang/Object;)Z", false));
+    collectionKnownMethods.add(new AddAllMethod("addAll(Ljava/util/Collection;)Z", 1));
+    collectionKnownMethods.add(new RemovalMethod("removeAll(Ljava/util/Collection;)Z"));
+    collectionKnownMethods.add(new RemovalMethod("retainAll(Ljava/util/Collection;)Z"));
+    collectionKnownMethods.add(new RemovalMethod("removeIf(Ljava/util/function/Predicate;)Z"));
+    collectionKnownMethods.add(new RemovalMethod("clear()V"));
     myKnownMethods.put(COLLECTION_TYPE, collectionKnownMethods);
 
+    KnownMethodsSet listKnownMethods = new KnownMethodsSet();
+    listKnownMethods.add(new ImmutableMethod("get(I)Ljava/lang/Object;"));
+    listKnownMethods.add(new AddAllMethod("addAll(ILjava/util/Collection;)Z", 2));
+    listKnownMethods.add(new SetMethod());
+    listKnownMethods.add(new AddArgumentMethod("add(ILjava/lang/Object;)V", 2));
+    listKnownMethods.add(new RemoveReturnedMethod("remove(I)Ljava/lang/Object;", false));
+    myKnownMethods.put(LIST_TYPE, listKnownMethods);
+
+    KnownMethodsSet queueKnownMethods = new KnownMethodsSet();
+    queueKnownMethods.add(new ImmutableMethod("peek()Ljava/lang/Object;"));
+    queueKnownMethods.add(new ImmutableMethod("element()Ljava/lang/Object;"));
+    queueKnownMethods.add(new ReturnsBooleanMethod("offer(Ljava/lang/Object;)Z", true));
+    queueKnownMethods.add(new RemoveReturnedMethod("poll()Ljava/lang/Object;", true));
+    queueKnownMethods.add(new RemoveReturnedMethod("remove()Ljava/lang/Object;", false));
+    myKnownMethods.put(QUEUE_TYPE, queueKnownMethods);
+
+    KnownMethodsSet dequeKnownMethods = new KnownMethodsSet();
+    dequeKnownMethods.add(new ImmutableMethod("peekFirst()Ljava/lang/Object;"));
+    dequeKnownMethods.add(new ImmutableMethod("peekLast()Ljava/lang/Object;"));
+    dequeKnownMethods.add(new ImmutableMethod("getFirst()Ljava/lang/Object;"));
+    dequeKnownMethods.add(new ImmutableMethod("getLast()Ljava/lang/Object;"));
+    dequeKnownMethods.add(new ImmutableMethod("descendingIterator()Ljava/util/Iterator;"));
+    dequeKnownMethods.add(new AddArgumentMethod("addFirst(Ljava/lang/Object;)V", 1));
+    dequeKnownMethods.add(new AddArgumentMethod("addLast(Ljava/lang/Object;)V", 1));
+    dequeKnownMethods.add(new AddArgumentMethod("push(Ljava/lang/Object;)V", 1));
+    dequeKnownMethods.add(new ReturnsBooleanMethod("offerFirst(Ljava/lang/Object;)Z", true));
+    dequeKnownMethods.add(new ReturnsBooleanMethod("offerLast(Ljava/lang/Object;)Z", true));
+    dequeKnownMethods.add(new RemoveReturnedMethod("pollFirst()Ljava/lang/Object;", true));
+    dequeKnownMethods.add(new RemoveReturnedMethod("pollLast()Ljava/lang/Object;", true));
+    dequeKnownMethods.add(new RemoveReturnedMethod("pop()Ljava/lang/Object;", false));
+    dequeKnownMethods.add(new RemoveReturnedMethod("removeFirst()Ljava/lang/Object;", false));
+    dequeKnownMethods.add(new RemoveReturnedMethod("removeLast()Ljava/lang/Object;", false));
+    dequeKnownMethods.add(new ReturnsBooleanMethod("removeFirstOccurrence(Ljava/lang/Object;)Z", false));
+    dequeKnownMethods.add(new ReturnsBooleanMethod("removeLastOccurrence(Ljava/lang/Object;)Z", false));
+    myKnownMethods.put(DEQUE_TYPE, dequeKnownMethods);
+
+    KnownMethodsSet sortedSetKnownMethods = new KnownMethodsSet();
+    sortedSetKnownMethods.add(new ImmutableMethod("first()Ljava/lang/Object;"));
+    sortedSetKnownMethods.add(new ImmutableMethod("last()Ljava/lang/Object;"));
+    myKnownMethods.put(SORTED_SET_TYPE, sortedSetKnownMethods);
+
+    KnownMethodsSet navigableSetKnownMethods = new KnownMethodsSet();
+    navigableSetKnownMethods.add(new RemoveReturnedMethod("pollFirst()Ljava/lang/Object;", true));
+    navigableSetKnownMethods.add(new RemoveReturnedMethod("pollLast()Ljava/lang/Object;", true));
+    myKnownMethods.put(NAVIGABLE_SET_TYPE, navigableSetKnownMethods);
+
     KnownMethodsSet abstractCollectionKnownMethods = new KnownMethodsSet();
     abstractCollectionKnownMethods.add(new ImmutableMethod("toString()Ljava/lang/String;"));
     myKnownMethods.put(ABSTRACT_COLLECTION_TYPE, abstractCollectionKnownMethods);
@@ -113,9 +229,37 @@ public class CollectionBreakpointInstrumentor {
     mapKnownMethods.add(new ImmutableMethod("containsValue(Ljava/lang/Object;)Z"));
     mapKnownMethods.add(new ImmutableMethod("equals(Ljava/lang/Object;)Z"));
     mapKnownMethods.add(new ImmutableMethod("hashCode()I"));
+    mapKnownMethods.add(new ImmutableMethod("get(Ljava/lang/Object;)Ljava/lang/Object;"));
+    mapKnownMethods.add(new ImmutableMethod("getOrDefault(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;"));
     mapKnownMethods.add(new PutMethod());
     mapKnownMethods.add(new RemoveKeyMethod());
+    mapKnownMethods.add(new PutIfAbsentMethod());
+    mapKnownMethods.add(new ConditionalRemoveMethod());
+    mapKnownMethods.add(new ReplaceMethod());
+    mapKnownMethods.add(new ConditionalReplaceMethod());
+    mapKnownMethods.add(new KeyModificationMethod("compute(Ljava/lang/Object;Ljava/util/function/BiFunction;)Ljava/lang/Object;"));
+    mapKnownMethods.add(new KeyModificationMethod("computeIfAbsent(Ljava/lang/Object;Ljava/util/function/Function;)Ljava/lang/Object;"));
+    mapKnownMethods.add(new KeyModificationMethod("computeIfPresent(Ljava/lang/Object;Ljava/util/function/BiFunction;)Ljava/lang/Object;"));
+    mapKnownMethods.add(new KeyModificationMethod("merge(Ljava/lang/Object;Ljava/lang/Object;Ljava/util/function/BiFunction;)Ljava/lang/Object;"));
+    mapKnownMethods.add(new PutAllMethod());
+    mapKnownMethods.add(new RemovalMethod("clear()V"));
     myKnownMethods.put(MAP_TYPE, mapKnownMethods);
+
+    KnownMethodsSet sortedMapKnownMethods = new KnownMethodsSet();
+    sortedMapKnownMethods.add(new ImmutableMethod("firstKey()Ljava/lang/Object;"));
+    sortedMapKnownMethods.add(new ImmutableMethod("lastKey()Ljava/lang/Object;"));
+    myKnownMethods.put(SORTED_MAP_TYPE, sortedMapKnownMethods);
+
+    KnownMethodsSet navigableMapKnownMethods = new KnownMethodsSet();
+    navigableMapKnownMethods.add(new ImmutableMethod("firstEntry()Ljava/util/Map$Entry;"));
+    navigableMapKnownMethods.add(new ImmutableMethod("lastEntry()Ljava/util/Map$Entry;"));
+    navigableMapKnownMethods.add(new ImmutableMethod("floorKey(Ljava/lang/Object;)Ljava/lang/Object;"));
+    navigableMapKnownMethods.add(new ImmutableMethod("ceilingKey(Ljava/lang/Object;)Ljava/lang/Object;"));
+    navigableMapKnownMethods.add(new ImmutableMethod("lowerKey(Ljava/lang/Object;)Ljava/lang/Object;"));
+    navigableMapKnownMethods.add(new ImmutableMethod("higherKey(Ljava/lang/Object;)Ljava/lang/Object;"));
+    navigableMapKnownMethods.add(new PollEntryMethod("pollFirstEntry()Ljava/util/Map$Entry;"));
+    navigableMapKnownMethods.add(new PollEntryMethod("pollLastEntry()Ljava/util/Map$Entry;"));
+    myKnownMethods.put(NAVIGABLE_MAP_TYPE, navigableMapKnownMethods);
   }
 
   public static void init(Properties properties, Instrumentation instrumentation) {
@@ -123,7 +267,9 @@ public class CollectionBreakpointInstrumentor {
     if (!enabled) return;
 
     initializeKnownMethods();
+    CollectionBreakpointStorage.init(properties);
     ourInstrumentation = instrumentation;
+    ourProxyMode = Boolean.parseBoolean(properties.getProperty("collectionBreakpointsProxyMode", "false"));
     ourInstrumentation.addTransformer(new CollectionBreakpointTransformer(), true);
 
     if (DEBUG) {
@@ -170,13 +316,29 @@ public class CollectionBreakpointInstrumentor {
   }
 
   @SuppressWarnings("unused")
-  public static void captureCollectionModification(Multiset oldElements, Object newCollectionInstance) {
+  public static void captureCollectionModification(CollectionSnapshot oldElements, Object newCollectionInstance) {
     try {
       CollectionInstanceLock lock = myInstanceFilters.get(newCollectionInstance);
       if (oldElements == null || lock == null) {
         return;
       }
-      ArrayList<Modification> modifications = getModifications(oldElements, newCollectionInstance);
+      ArrayList<Modification> modifications = getModifications(oldElements, CollectionSnapshot.create(newCollectionInstance));
+      if (!modifications.isEmpty()) {
+        saveCollectionModifications(newCollectionInstance, modifications);
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureRemovals(boolean modified, CollectionSnapshot oldElements, Object newCollectionInstance) {
+    try {
+      if (!modified || oldElements == null) {
+        return;
+      }
+      ArrayList<Modification> modifications = getRemovals(oldElements, CollectionSnapshot.create(newCollectionInstance));
       if (!modifications.isEmpty()) {
         saveCollectionModifications(newCollectionInstance, modifications);
       }
@@ -186,6 +348,264 @@ public class CollectionBreakpointInstrumentor {
     }
   }
 
+  /**
+   * Returns the elements which may be added by {@code addAll}: the ones not contained in the collection yet for sets,
+   * all of them otherwise, as lists, queues and other collections append every element.
+   */
+  @SuppressWarnings("unused")
+  public static Object[] beforeAddAll(boolean shouldCapture, Object collectionInstance, Object added) {
+    try {
+      if (!shouldCapture || !(added instanceof Collection)) {
+        return null;
+      }
+      // The collection may be added to itself, so copy the elements before the call.
+      Object[] elements = ((Collection<?>)added).toArray();
+      if (!(collectionInstance instanceof Set)) {
+        return elements;
+      }
+      Collection<?> collection = (Collection<?>)collectionInstance;
+      ArrayList<Object> candidates = new ArrayList<>();
+      for (Object element : elements) {
+        if (!collection.contains(element)) {
+          candidates.add(element);
+        }
+      }
+      return candidates.toArray();
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureAdditions(boolean modified, Object collectionInstance, Object[] candidates) {
+    try {
+      if (!modified || candidates == null) {
+        return;
+      }
+      if (!(collectionInstance instanceof Set)) {
+        for (Object element : candidates) {
+          CollectionBreakpointStorage.saveCollectionModification(collectionInstance, element, true);
+        }
+        return;
+      }
+      Collection<?> collection = (Collection<?>)collectionInstance;
+      HashSet<Object> added = new HashSet<>();
+      for (Object element : candidates) {
+        if (collection.contains(element) && added.add(element)) {
+          CollectionBreakpointStorage.saveCollectionModification(collectionInstance, element, true);
+        }
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureElementModification(boolean shouldCapture, Object collectionInstance, Object elem, boolean isAddition) {
+    captureCollectionModification(shouldCapture, true, collectionInstance, elem, isAddition);
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureElementReplacement(boolean shouldCapture, Object collectionInstance, Object oldElem, Object newElem) {
+    if (oldElem == newElem) {
+      return;
+    }
+    captureCollectionModification(shouldCapture, true, collectionInstance, oldElem, false);
+    captureCollectionModification(shouldCapture, true, collectionInstance, newElem, true);
+  }
+
+  // null is returned both for an empty collection and for a null element, the first is much more likely.
+  @SuppressWarnings("unused")
+  public static void capturePolledElement(boolean shouldCapture, Object collectionInstance, Object elem) {
+    captureCollectionModification(shouldCapture, elem != null, collectionInstance, elem, false);
+  }
+
+  @SuppressWarnings("unused")
+  public static void capturePolledEntry(boolean shouldCapture, Object mapInstance, Object entry) {
+    if (entry instanceof Map.Entry) {
+      Map.Entry<?, ?> polled = (Map.Entry<?, ?>)entry;
+      captureCollectionModification(shouldCapture, true, mapInstance, new Pair(polled.getKey(), polled.getValue()), false);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureConditionalRemoval(boolean shouldCapture, boolean removed, Object mapInstance, Object key, Object value) {
+    captureCollectionModification(shouldCapture, removed, mapInstance, new Pair(key, value), false);
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureConditionalReplacement(boolean shouldCapture,
+                                                   boolean replaced,
+                                                   Object mapInstance,
+                                                   Object key,
+                                                   Object oldValue,
+                                                   Object newValue) {
+    if (replaced && oldValue != newValue) {
+      captureCollectionModification(shouldCapture, true, mapInstance, new Pair(key, oldValue), false);
+      captureCollectionModification(shouldCapture, true, mapInstance, new Pair(key, newValue), true);
+    }
+  }
+
+  /**
+   * {@code replace(key, value)} returns null both for a missing key and for a key mapped to null,
+   * only the latter is checked after the call, {@code containsKey} doesn't change the order of entries.
+   */
+  @SuppressWarnings("unused")
+  public static void captureReplacement(boolean shouldCapture, Object previous, Object mapInstance, Object key, Object value) {
+    try {
+      if (!shouldCapture || previous == value) {
+        return;
+      }
+      if (previous != null || ((Map<?, ?>)mapInstance).containsKey(key)) {
+        captureValueChange(mapInstance, key, previous, value);
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static void capturePutIfAbsent(boolean shouldCapture, Object previous, Object mapInstance, Object key, Object value) {
+    captureCollectionModification(shouldCapture, previous == null && value != null, mapInstance, new Pair(key, value), true);
+  }
+
+  /**
+   * Returns the value of the key before the call, or a copy of the map when reading the value could change it:
+   * {@code get} moves the entry in a {@link LinkedHashMap} with access order, which can't be told apart from insertion order.
+   */
+  @SuppressWarnings("unused")
+  public static Object beforeKeyModification(boolean shouldCapture, Object mapInstance, Object key) {
+    try {
+      if (!shouldCapture) {
+        return null;
+      }
+      if (mayReorderOnGet(mapInstance)) {
+        return CollectionSnapshot.create(mapInstance);
+      }
+      return getValueOrUnknown((Map<?, ?>)mapInstance, key);
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unused")
+  public static void captureKeyModification(boolean shouldCapture, Object mapInstance, Object key, Object oldValue) {
+    try {
+      if (!shouldCapture || oldValue == UNKNOWN) {
+        return;
+      }
+      if (oldValue instanceof CollectionSnapshot) {
+        captureMapChanges(mapInstance, (CollectionSnapshot)oldValue);
+        return;
+      }
+      captureValueChange(mapInstance, key, oldValue, getValueOrUnknown((Map<?, ?>)mapInstance, key));
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Returns keys of the added map followed by their values in the map before {@code putAll},
+   * or a copy of the map as in {@link #beforeKeyModification}.
+   */
+  @SuppressWarnings("unused")
+  public static Object beforePutAll(boolean shouldCapture, Object mapInstance, Object added) {
+    try {
+      if (!shouldCapture || !(added instanceof Map)) {
+        return null;
+      }
+      if (mayReorderOnGet(mapInstance)) {
+        return CollectionSnapshot.create(mapInstance);
+      }
+      Object[] keys = ((Map<?, ?>)added).keySet().toArray();
+      Object[] state = Arrays.copyOf(keys, keys.length * 2);
+      for (int i = 0; i < keys.length; i++) {
+        Object value = getValueOrUnknown((Map<?, ?>)mapInstance, keys[i]);
+        if (value == UNKNOWN) {
+          return null;
+        }
+        state[keys.length + i] = value;
+      }
+      return state;
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unused")
+  public static void capturePutAll(Object mapInstance, Object state) {
+    try {
+      if (state instanceof CollectionSnapshot) {
+        captureMapChanges(mapInstance, (CollectionSnapshot)state);
+        return;
+      }
+      if (!(state instanceof Object[])) {
+        return;
+      }
+      Object[] values = (Object[])state;
+      int size = values.length / 2;
+      for (int i = 0; i < size; i++) {
+        Object key = values[i];
+        captureValueChange(mapInstance, key, values[size + i], getValueOrUnknown((Map<?, ?>)mapInstance, key));
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void captureMapChanges(Object mapInstance, CollectionSnapshot oldEntries) {
+    ArrayList<Modification> modifications = getModifications(oldEntries, CollectionSnapshot.create(mapInstance));
+    if (!modifications.isEmpty()) {
+      saveCollectionModifications(mapInstance, modifications);
+    }
+  }
+
+  private static boolean mayReorderOnGet(Object mapInstance) {
+    if (Proxy.isProxyClass(mapInstance.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(mapInstance);
+      if (handler instanceof CollectionProxyHandler) {
+        mapInstance = ((CollectionProxyHandler)handler).myDelegate;
+      }
+    }
+    return mapInstance instanceof LinkedHashMap;
+  }
+
+  /**
+   * Returns {@link #UNKNOWN} if the map rejects the key, e.g. null in a {@link java.util.TreeMap},
+   * the modification method fails the same way then.
+   */
+  private static Object getValueOrUnknown(Map<?, ?> map, Object key) {
+    try {
+      Object value = map.get(key);
+      return value != null || map.containsKey(key) ? value : ABSENT;
+    }
+    catch (RuntimeException e) {
+      return UNKNOWN;
+    }
+  }
+
+  private static void captureValueChange(Object mapInstance, Object key, Object oldValue, Object newValue) {
+    if (oldValue == newValue) {
+      return;
+    }
+    if (oldValue != ABSENT) {
+      CollectionBreakpointStorage.saveCollectionModification(mapInstance, new Pair(key, oldValue), false);
+    }
+    if (newValue != ABSENT) {
+      CollectionBreakpointStorage.saveCollectionModification(mapInstance, new Pair(key, newValue), true);
+    }
+  }
+
   @SuppressWarnings("unused")
   public static boolean onCaptureStart(Object collectionInstance, boolean shouldSynchronized) {
     try {
@@ -214,12 +634,12 @@ public class CollectionBreakpointInstrumentor {
   }
 
   @SuppressWarnings("unused")
-  public static Multiset captureCollectionCopy(boolean shouldCapture, Object collectionInstance) {
+  public static CollectionSnapshot captureCollectionCopy(boolean shouldCapture, Object collectionInstance) {
     try {
       if (!shouldCapture) {
         return null;
       }
-      return Multiset.toMultiset(collectionInstance);
+      return CollectionSnapshot.create(collectionInstance);
     }
     catch (Exception e) {
       e.printStackTrace();
@@ -236,14 +656,45 @@ public class CollectionBreakpointInstrumentor {
     }
   }
 
-  private static ArrayList<Modification> getModifications(Multiset oldElements, Object newCollection) {
-    Multiset newElements = Multiset.toMultiset(newCollection);
+  /**
+   * Skips the common prefix and suffix of the snapshots, so appending, inserting or removing a range
+   * and calls without changes don't need hashing. Only the remaining middle parts are compared as multisets.
+   */
+  private static ArrayList<Modification> getModifications(CollectionSnapshot oldElements, CollectionSnapshot newElements) {
+    int oldSize = oldElements.size();
+    int newSize = newElements.size();
+    int commonSize = Math.min(oldSize, newSize);
+    int prefix = 0;
+    while (prefix < commonSize && oldElements.isSame(prefix, newElements, prefix)) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < commonSize - prefix && oldElements.isSame(oldSize - 1 - suffix, newElements, newSize - 1 - suffix)) {
+      suffix++;
+    }
+    int oldEnd = oldSize - suffix;
+    int newEnd = newSize - suffix;
 
     ArrayList<Modification> modifications = new ArrayList<>();
+    if (prefix == oldEnd) {
+      for (int i = prefix; i < newEnd; i++) {
+        modifications.add(new Modification(newElements.getElement(i), true));
+      }
+      return modifications;
+    }
+    if (prefix == newEnd) {
+      for (int i = prefix; i < oldEnd; i++) {
+        modifications.add(new Modification(oldElements.getElement(i), false));
+      }
+      return modifications;
+    }
 
-    for (Map.Entry<Object, Integer> entry : newElements.entrySet()) {
+    Multiset oldMiddle = oldElements.toMultiset(prefix, oldEnd);
+    Multiset newMiddle = newElements.toMultiset(prefix, newEnd);
+
+    for (Map.Entry<Object, Integer> entry : newMiddle.entrySet()) {
       Integer newNumber = entry.getValue();
-      Integer oldNumber = oldElements.get(entry.getKey());
+      Integer oldNumber = oldMiddle.get(entry.getKey());
       Object element = entry.getKey();
       if (element instanceof Wrapper) {
         element = ((Wrapper)element).getValue();
@@ -254,8 +705,8 @@ public class CollectionBreakpointInstrumentor {
       }
     }
 
-    for (Map.Entry<Object, Integer> entry : oldElements.entrySet()) {
-      Integer newNumber = newElements.get(entry.getKey());
+    for (Map.Entry<Object, Integer> entry : oldMiddle.entrySet()) {
+      Integer newNumber = newMiddle.get(entry.getKey());
       Object element = entry.getKey();
       if (element instanceof Wrapper) {
         element = ((Wrapper)element).getValue();
@@ -268,19 +719,121 @@ public class CollectionBreakpointInstrumentor {
     return modifications;
   }
 
+  /**
+   * Removals keep the iteration order of the remaining elements in lists and in the standard sets and maps,
+   * so a single merge pass finds the removed elements. Falls back to the full comparison otherwise.
+   */
+  private static ArrayList<Modification> getRemovals(CollectionSnapshot oldElements, CollectionSnapshot newElements) {
+    ArrayList<Modification> modifications = new ArrayList<>();
+    int newIndex = 0;
+    for (int oldIndex = 0; oldIndex < oldElements.size(); oldIndex++) {
+      if (newIndex < newElements.size() && oldElements.isSame(oldIndex, newElements, newIndex)) {
+        newIndex++;
+      }
+      else {
+        modifications.add(new Modification(oldElements.getElement(oldIndex), false));
+      }
+    }
+    if (newIndex != newElements.size()) {
+      return getModifications(oldElements, newElements);
+    }
+    return modifications;
+  }
+
+  /**
+   * Returns a proxy capturing modifications of the collection if the proxy can be stored in a field
+   * of the given interface type, otherwise returns the collection itself and its class is transformed as usual.
+   * The collection is not wrapped if the field type is a class or if the collection implements a non-public
+   * interface, the proxy could not replace it then.
+   */
+  @SuppressWarnings("unused")
+  public static Object wrapCollection(Object collectionInstance, String fieldTypeDesc) {
+    try {
+      if (collectionInstance == null || isCollectionProxy(collectionInstance)) {
+        return collectionInstance;
+      }
+      if (!(collectionInstance instanceof Collection || collectionInstance instanceof Map)) {
+        return collectionInstance;
+      }
+      Class<?> cls = collectionInstance.getClass();
+      Set<Class<?>> interfaces = getAllInterfaces(cls);
+      if (interfaces == null) {
+        return collectionInstance;
+      }
+      // a field of type Object can hold the proxy as well as a field of any interface of the collection
+      boolean isAssignable = fieldTypeDesc.equals(OBJECT_TYPE);
+      for (Class<?> inter : interfaces) {
+        isAssignable |= fieldTypeDesc.equals("L" + getInternalClsName(inter) + ";");
+      }
+      if (!isAssignable) {
+        return collectionInstance;
+      }
+      return Proxy.newProxyInstance(cls.getClassLoader(),
+                                    interfaces.toArray(new Class<?>[0]),
+                                    new CollectionProxyHandler(collectionInstance, getProxyKnownMethods(cls)));
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    return collectionInstance;
+  }
+
+  /**
+   * Returns all interfaces of the class, or null if some of them are not public.
+   */
+  private static Set<Class<?>> getAllInterfaces(Class<?> cls) {
+    Set<Class<?>> result = new LinkedHashSet<>();
+    Queue<Class<?>> queue = new LinkedList<>();
+    for (Class<?> currentCls = cls; currentCls != null; currentCls = currentCls.getSuperclass()) {
+      queue.addAll(Arrays.asList(currentCls.getInterfaces()));
+    }
+    while (!queue.isEmpty()) {
+      Class<?> inter = queue.poll();
+      if (!Modifier.isPublic(inter.getModifiers())) {
+        return null;
+      }
+      if (result.add(inter)) {
+        queue.addAll(Arrays.asList(inter.getInterfaces()));
+      }
+    }
+    return result;
+  }
+
+  // The proxy is only called through interfaces, so their contracts are enough, whatever the collection class is.
+  private static KnownMethodsSet getProxyKnownMethods(Class<?> cls) {
+    Set<Class<?>> supers = new LinkedHashSet<Class<?>>(getSuperClassesAndInterfaces(cls));
+    Set<Class<?>> interfaces = getAllInterfaces(cls);
+    if (interfaces != null) {
+      supers.addAll(interfaces);
+    }
+    KnownMethodsSet result = new KnownMethodsSet();
+    for (Class<?> superCls : supers) {
+      KnownMethodsSet knownMethods = myKnownMethods.get(getInternalClsName(superCls));
+      if (knownMethods != null) {
+        result.addAll(knownMethods);
+      }
+    }
+    return result;
+  }
+
+  private static boolean isCollectionProxy(Object obj) {
+    return Proxy.isProxyClass(obj.getClass()) && Proxy.getInvocationHandler(obj) instanceof CollectionProxyHandler;
+  }
+
   @SuppressWarnings("unused")
   public static void captureFieldModification(Object collectionInstance,
                                               Object clsInstance,
-                                              String clsTypeDesc,
-                                              String fieldName,
+                                              int fieldId,
                                               boolean shouldSaveStack) {
     try {
       if (collectionInstance == null) {
         return;
       }
-      myInstanceFilters.add(collectionInstance);
-      transformCollectionClassIfNeeded(collectionInstance.getClass());
-      CollectionBreakpointStorage.saveFieldModification(clsTypeDesc, fieldName, clsInstance, collectionInstance, shouldSaveStack);
+      if (!isCollectionProxy(collectionInstance)) {
+        myInstanceFilters.add(collectionInstance);
+        transformCollectionClassIfNeeded(collectionInstance.getClass());
+      }
+      CollectionBreakpointStorage.saveFieldModification(fieldId, clsInstance, collectionInstance, shouldSaveStack);
     }
     catch (Exception e) {
       e.printStackTrace();
@@ -290,17 +843,15 @@ public class CollectionBreakpointInstrumentor {
   private static void transformClassToCaptureFields(String qualifiedClsName) {
     try {
       myTransformLock.lock();
-      for (Class cls : ourInstrumentation.getAllLoadedClasses()) {
-        String name = cls.getName();
-        if (name.equals(qualifiedClsName)) {
-          try {
-            ourInstrumentation.retransformClasses(cls);
-          }
-          catch (UnmodifiableClassException e) {
-            e.printStackTrace();
-          }
-        }
+      List<Class<?>> classes = myLoadedClasses.get(Collections.singleton(qualifiedClsName.replace('.', '/')));
+      Set<String> nestedNames = new HashSet<>();
+      for (Class<?> cls : classes) {
+        nestedNames.addAll(findNestedMembers(cls, false, myClassesToTransform));
       }
+      myClassesToTransform.addAll(nestedNames);
+      List<Class<?>> classesToRetransform = new ArrayList<>(classes);
+      classesToRetransform.addAll(myLoadedClasses.get(nestedNames));
+      retransformClasses(classesToRetransform);
       transformClassNestedMembers();
     }
     finally {
@@ -308,35 +859,105 @@ public class CollectionBreakpointInstrumentor {
     }
   }
 
+  // Nested members which were found only during the transformation, e.g. if the class file is not available as a resource.
   private static void transformClassNestedMembers() {
     while (!myUnprocessedNestedMembers.isEmpty()) {
       myClassesToTransform.addAll(myUnprocessedNestedMembers);
       Set<String> nestedNames = new HashSet<>(myUnprocessedNestedMembers);
       myUnprocessedNestedMembers.clear();
-      transformNestedMembers(nestedNames);
+      retransformClasses(myLoadedClasses.get(nestedNames));
     }
   }
 
   private static void transformCollectionNestedMembers() {
-    for (String nestedName : myUnprocessedNestedMembers) {
-      myCollectionsToTransform.put(nestedName, new KnownMethodsSet());
+    while (!myUnprocessedNestedMembers.isEmpty()) {
+      for (String nestedName : myUnprocessedNestedMembers) {
+        myCollectionsToTransform.put(nestedName, new KnownMethodsSet());
+      }
+      Set<String> nestedNames = new HashSet<>(myUnprocessedNestedMembers);
+      myUnprocessedNestedMembers.clear();
+      retransformClasses(myLoadedClasses.get(nestedNames));
     }
-    Set<String> nestedNames = new HashSet<>(myUnprocessedNestedMembers);
-    myUnprocessedNestedMembers.clear();
-    transformNestedMembers(nestedNames);
   }
 
-  private static void transformNestedMembers(Set<String> nestedNames) {
-    for (Class<?> loadedCls : ourInstrumentation.getAllLoadedClasses()) {
-      String loadedClsName = getInternalClsName(loadedCls);
-      if (nestedNames.contains(loadedClsName)) {
+  /**
+   * Retransforms the classes with one call, so the VM is stopped once.
+   */
+  private static void retransformClasses(List<Class<?>> classes) {
+    List<Class<?>> modifiableClasses = new ArrayList<>();
+    for (Class<?> cls : classes) {
+      if (ourInstrumentation.isModifiableClass(cls)) {
+        modifiableClasses.add(cls);
+      }
+    }
+    if (modifiableClasses.isEmpty()) {
+      return;
+    }
+    try {
+      ourInstrumentation.retransformClasses(modifiableClasses.toArray(new Class<?>[0]));
+    }
+    catch (Throwable e) {
+      // one failed class fails the whole batch, don't let it affect the others
+      for (Class<?> cls : modifiableClasses) {
         try {
-          ourInstrumentation.retransformClasses(loadedCls);
+          ourInstrumentation.retransformClasses(cls);
         }
-        catch (UnmodifiableClassException e) {
-          e.printStackTrace();
+        catch (Throwable classError) {
+          classError.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the nested members of the class and, transitively, of its nested members which are not in {@code processed}.
+   * These are the same classes {@link MyClassVisitor#visitInnerClass} finds in the InnerClasses attributes
+   * during the transformation, reading them in advance allows transforming all the classes at once.
+   */
+  private static Set<String> findNestedMembers(Class<?> cls, final boolean onlyNonStatic, final Set<String> processed) {
+    final Set<String> result = new HashSet<>();
+    Queue<String> queue = new ArrayDeque<>();
+    queue.add(getInternalClsName(cls));
+    ClassLoader loader = cls.getClassLoader();
+    while (!queue.isEmpty()) {
+      final String clsName = queue.poll();
+      byte[] bytes = readClassFile(loader, clsName);
+      if (bytes == null) {
+        continue;
+      }
+      final List<String> found = new ArrayList<>();
+      new ClassReader(bytes).accept(new ClassVisitor(Opcodes.API_VERSION) {
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+          boolean isNonStatic = (access & Opcodes.ACC_STATIC) == 0;
+          if ((isNonStatic || !onlyNonStatic) && !name.equals(clsName) && !processed.contains(name) && result.add(name)) {
+            found.add(name);
+          }
         }
+      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      queue.addAll(found);
+    }
+    return result;
+  }
+
+  private static byte[] readClassFile(ClassLoader loader, String internalClsName) {
+    String resourceName = internalClsName + ".class";
+    try (InputStream stream = loader == null
+                              ? ClassLoader.getSystemResourceAsStream(resourceName)
+                              : loader.getResourceAsStream(resourceName)) {
+      if (stream == null) {
+        return null;
       }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = stream.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    }
+    catch (IOException e) {
+      return null;
     }
   }
 
@@ -378,18 +999,11 @@ public class CollectionBreakpointInstrumentor {
     return result;
   }
 
-  private static Set<String> getClassesNames(List<Class<?>> classes) {
-    Set<String> result = new HashSet<>();
-    for (Class<?> cls : classes) {
-      result.add(cls.getName());
-    }
-    return result;
-  }
-
   private static KnownMethodsSet getAllKnownMethods(Class<?> cls, List<Class<?>> supers) {
     String internalClsName = getInternalClsName(cls);
+    String[] packageAndName = internalClsName.split("/");
     boolean fairCheckIsNecessary = !internalClsName.startsWith("java/util") ||
-                                   internalClsName.split("/").length != 3;
+                                   packageAndName.length != 3 && !isConcurrentCollection(internalClsName);
 
     if (fairCheckIsNecessary) {
       return new KnownMethodsSet();
@@ -414,6 +1028,12 @@ public class CollectionBreakpointInstrumentor {
     return result;
   }
 
+  private static boolean isConcurrentCollection(String internalClsName) {
+    String[] packageAndName = internalClsName.split("/");
+    return packageAndName.length == 4 && "java".equals(packageAndName[0]) && "util".equals(packageAndName[1]) &&
+           "concurrent".equals(packageAndName[2]);
+  }
+
   private static void transformCollectionClassIfNeeded(Class<?> cls) {
     try {
       myTransformLock.lock();
@@ -423,19 +1043,25 @@ public class CollectionBreakpointInstrumentor {
       }
 
       List<Class<?>> allSupers = getSuperClassesAndInterfaces(cls);
-      Set<String> allSupersNames = getClassesNames(allSupers);
-
-      for (Class<?> loadedCls : ourInstrumentation.getAllLoadedClasses()) {
-        if (allSupersNames.contains(loadedCls.getName())) {
-          try {
-            myCollectionsToTransform.put(getInternalClsName(loadedCls), getAllKnownMethods(loadedCls, allSupers));
-            ourInstrumentation.retransformClasses(loadedCls);
-          }
-          catch (UnmodifiableClassException e) {
-            e.printStackTrace();
-          }
+      List<Class<?>> classesToRetransform = new ArrayList<>();
+      Set<String> nestedNames = new HashSet<>();
+      for (Class<?> superCls : allSupers) {
+        String superClsName = getInternalClsName(superCls);
+        // already transformed with the same known methods for another collection
+        if (myCollectionsToTransform.containsKey(superClsName)) {
+          continue;
         }
+        myCollectionsToTransform.put(superClsName, getAllKnownMethods(superCls, allSupers));
+        classesToRetransform.add(superCls);
+      }
+      for (Class<?> superCls : classesToRetransform) {
+        nestedNames.addAll(findNestedMembers(superCls, true, myCollectionsToTransform.keySet()));
+      }
+      for (String nestedName : nestedNames) {
+        myCollectionsToTransform.put(nestedName, new KnownMethodsSet());
       }
+      classesToRetransform.addAll(myLoadedClasses.get(nestedNames));
+      retransformClasses(classesToRetransform);
 
       transformCollectionNestedMembers();
     }
@@ -483,6 +1109,10 @@ public class CollectionBreakpointInstrumentor {
         return null;
       }
 
+      if (classBeingRedefined == null) {
+        myLoadedClasses.onClassLoaded(className);
+      }
+
       if (myCollectionsToTransform.containsKey(className) || myClassesToTransform.contains(className)) {
         try {
           ClassTransformer transformer = new ClassTransformer(className, classfileBuffer, ClassWriter.COMPUTE_FRAMES, loader);
@@ -568,7 +1198,9 @@ public class CollectionBreakpointInstrumentor {
     }
 
     private boolean shouldSynchronize(String methodFullDesc) {
-      return !shouldOptimizeCapture(methodFullDesc);
+      KnownMethodsSet knownMethods = myCollectionsToTransform.get(myClsName);
+      KnownMethod method = knownMethods == null ? null : knownMethods.get(methodFullDesc);
+      return method == null || method.shouldSynchronize(isConcurrentCollection(myClsName));
     }
 
     private static boolean isReturnInstruction(int opcode) {
@@ -636,6 +1268,7 @@ public class CollectionBreakpointInstrumentor {
       private final String myMethodFullDesc;
       private int myCollectionCopyVar;
       private int myShouldCaptureVar;
+      private int myStateVar;
       private int myAdditionalStackSpace = 0;
       private int myNumberOfAdditionalLocalVars = 0;
 
@@ -653,6 +1286,9 @@ public class CollectionBreakpointInstrumentor {
           if (!shouldOptimizeCapture(myMethodFullDesc)) {
             addCaptureCollectionCopyCode();
           }
+          else {
+            addBeforeCallCode();
+          }
         }
       }
 
@@ -703,12 +1339,24 @@ public class CollectionBreakpointInstrumentor {
                            CAPTURE_COLLECTION_COPY_METHOD_NAME,
                            CAPTURE_COLLECTION_COPY_METHOD_DESC,
                            false);
-        myCollectionCopyVar = newLocal(Type.getType(MULTISET_TYPE));
+        myCollectionCopyVar = newLocal(Type.getType(SNAPSHOT_TYPE));
         mv.visitVarInsn(Opcodes.ASTORE, myCollectionCopyVar);
         myAdditionalStackSpace += 3;
         myNumberOfAdditionalLocalVars += 1;
       }
 
+      private void addBeforeCallCode() {
+        KnownMethod knownMethod = myCollectionsToTransform.get(myClsName).get(myMethodFullDesc);
+        Type stateType = knownMethod.getStateType();
+        if (stateType == null) {
+          return;
+        }
+        myAdditionalStackSpace += knownMethod.addBeforeCallCode(mv, myShouldCaptureVar);
+        myStateVar = newLocal(stateType);
+        mv.visitVarInsn(stateType.getOpcode(Opcodes.ISTORE), myStateVar);
+        myNumberOfAdditionalLocalVars += 1;
+      }
+
       private void addCaptureCollectionModificationDefaultCode() {
         mv.visitVarInsn(Opcodes.ALOAD, myCollectionCopyVar);
         mv.visitVarInsn(Opcodes.ALOAD, 0);
@@ -727,7 +1375,7 @@ public class CollectionBreakpointInstrumentor {
           addCaptureCollectionModificationDefaultCode();
         }
         else {
-          myAdditionalStackSpace += knownMethod.addCaptureModificationCode(mv, myShouldCaptureVar);
+          myAdditionalStackSpace += knownMethod.addCaptureModificationCode(mv, myShouldCaptureVar, myStateVar);
         }
       }
     }
@@ -743,15 +1391,18 @@ public class CollectionBreakpointInstrumentor {
       public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
         boolean isPutOperation = opcode == Opcodes.PUTFIELD || opcode == Opcodes.PUTSTATIC;
         if (isPutOperation) {
-          visitPutField(mv, opcode, myClsName, owner, name);
+          visitPutField(mv, opcode, myClsName, owner, name, descriptor);
         }
         super.visitFieldInsn(opcode, owner, name, descriptor);
       }
 
-      private void visitPutField(MethodVisitor mv, int opcode, String clsName, String owner, String fieldName) {
+      private void visitPutField(MethodVisitor mv, int opcode, String clsName, String owner, String fieldName, String fieldDesc) {
         Set<String> fieldNames = myFieldsToCapture.get(owner);
         if (fieldNames != null && fieldNames.contains(fieldName)) {
           boolean isStaticField = opcode == Opcodes.PUTSTATIC;
+          if (ourProxyMode && fieldDesc.startsWith("L")) {
+            addWrapCollectionCode(mv, fieldDesc);
+          }
           addCaptureFieldModificationCode(mv, clsName, owner, fieldName, isStaticField);
         }
       }
@@ -761,21 +1412,31 @@ public class CollectionBreakpointInstrumentor {
         super.visitMaxs(maxStack + myAdditionalStackSpace, maxLocals);
       }
 
+      private void addWrapCollectionCode(MethodVisitor mv, String fieldDesc) {
+        mv.visitLdcInsn(fieldDesc);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                           getInstrumentorClassName(),
+                           WRAP_COLLECTION_METHOD_NAME,
+                           WRAP_COLLECTION_METHOD_DESC,
+                           false);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getType(fieldDesc).getInternalName());
+        myAdditionalStackSpace += 1;
+      }
+
       private void addCaptureFieldModificationCode(MethodVisitor mv,
                                                    String clsName,
                                                    String fieldOwner,
                                                    String fieldName,
                                                    boolean isStaticField) {
         putThisObjOnStack(mv, clsName, fieldOwner, isStaticField);
-        mv.visitLdcInsn(fieldOwner);
-        mv.visitLdcInsn(fieldName);
+        mv.visitLdcInsn(CollectionBreakpointStorage.getFieldId(fieldOwner, fieldName));
         mv.visitLdcInsn(true);
         mv.visitMethodInsn(Opcodes.INVOKESTATIC,
                            getInstrumentorClassName(),
                            CAPTURE_FIELD_MODIFICATION_METHOD_NAME,
                            CAPTURE_FIELD_MODIFICATION_METHOD_DESC,
                            false);
-        myAdditionalStackSpace += 3;
+        myAdditionalStackSpace += 2;
       }
 
       private void putThisObjOnStack(MethodVisitor mv, String clsName, String fieldOwner, boolean isStaticField) {
@@ -822,6 +1483,61 @@ public class CollectionBreakpointInstrumentor {
     }
   }
 
+  /**
+   * Elements of a collection, or keys and values of a map, at some moment.
+   * Copying them into arrays is much cheaper than hashing every element.
+   */
+  private static class CollectionSnapshot {
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Object[] myElements;
+    private final Object[] myValues; // null for collections
+
+    private CollectionSnapshot(Object[] elements, Object[] values) {
+      myElements = elements;
+      myValues = values;
+    }
+
+    static CollectionSnapshot create(Object collection) {
+      if (collection instanceof Collection) {
+        return new CollectionSnapshot(((Collection<?>)collection).toArray(), null);
+      }
+      if (collection instanceof Map) {
+        Map<?, ?> map = (Map<?, ?>)collection;
+        ArrayList<Object> keys = new ArrayList<>(map.size());
+        ArrayList<Object> values = new ArrayList<>(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          keys.add(entry.getKey());
+          values.add(entry.getValue());
+        }
+        return new CollectionSnapshot(keys.toArray(), values.toArray());
+      }
+      return new CollectionSnapshot(EMPTY, null);
+    }
+
+    int size() {
+      return myElements.length;
+    }
+
+    boolean isSame(int index, CollectionSnapshot other, int otherIndex) {
+      return myElements[index] == other.myElements[otherIndex] &&
+             (myValues == null || other.myValues == null || myValues[index] == other.myValues[otherIndex]);
+    }
+
+    // Map entries are reported as pairs.
+    Object getElement(int index) {
+      return myValues == null ? myElements[index] : new Pair(myElements[index], myValues[index]);
+    }
+
+    Multiset toMultiset(int from, int to) {
+      Multiset multiset = new Multiset();
+      for (int i = from; i < to; i++) {
+        multiset.add(myValues == null ? new Wrapper(myElements[i]) : getElement(i));
+      }
+      return multiset;
+    }
+  }
+
   private static class Multiset {
     private final HashMap<Object, Integer> myContainer = new HashMap<>();
 
@@ -842,56 +1558,245 @@ public class CollectionBreakpointInstrumentor {
     private Set<Map.Entry<Object, Integer>> entrySet() {
       return myContainer.entrySet();
     }
+  }
 
-    public static Multiset toMultiset(Object collection) {
-      Multiset multiset = new Multiset();
-      if (collection instanceof Collection) {
-        for (Object element : (Collection<?>)collection) {
-          multiset.add(new Wrapper(element));
+  /**
+   * Finds loaded classes by names without scanning all the loaded classes on every request.
+   * <p>
+   * The index is filled by one scan on the first request. The transformer only records names of classes loaded
+   * since a scan started, and the index is rescanned when one of them is requested.
+   */
+  private static class LoadedClassesIndex {
+    private Map<String, List<WeakReference<Class<?>>>> myClasses; // guarded by myTransformLock, null before the first scan
+    // Incremented when a scan starts, nothing is recorded before the first one, the scan finds these classes itself.
+    private volatile int myScansCount;
+    // Names of classes loaded since the last scan with the number of the scan running when they were recorded.
+    // A class is recorded before it is defined, so a name not found by a scan is kept until the next scan,
+    // then it's dropped, e.g. if the definition failed, and a requested name which is never defined
+    // doesn't make every request rescan.
+    private final ConcurrentHashMap<String, Integer> myLoadedAfterScan = new ConcurrentHashMap<>();
+
+    void onClassLoaded(String internalClsName) {
+      int scansCount = myScansCount;
+      if (scansCount > 0) {
+        myLoadedAfterScan.put(internalClsName, scansCount);
+      }
+    }
+
+    /**
+     * Returns the loaded classes with the given internal names, should be called under myTransformLock.
+     */
+    List<Class<?>> get(Collection<String> internalClsNames) {
+      if (myClasses == null || containsAny(myLoadedAfterScan, internalClsNames)) {
+        scan();
+      }
+      List<Class<?>> result = new ArrayList<>();
+      for (String name : internalClsNames) {
+        List<WeakReference<Class<?>>> classes = myClasses.get(name);
+        if (classes != null) {
+          for (WeakReference<Class<?>> reference : classes) {
+            Class<?> cls = reference.get();
+            if (cls != null) {
+              result.add(cls);
+            }
+          }
         }
       }
-      else if (collection instanceof Map) {
-        for (Map.Entry<?, ?> element : ((Map<?, ?>)collection).entrySet()) {
-          multiset.add(new Pair(element.getKey(), element.getValue()));
+      return result;
+    }
+
+    private static boolean containsAny(Map<String, ?> map, Collection<String> elements) {
+      for (String element : elements) {
+        if (map.containsKey(element)) {
+          return true;
         }
       }
-      return multiset;
+      return false;
+    }
+
+    // The index is rebuilt, so collected classes are dropped too.
+    private void scan() {
+      int scansCount = ++myScansCount;
+      Map<String, List<WeakReference<Class<?>>>> classes = new HashMap<>();
+      for (Class<?> cls : ourInstrumentation.getAllLoadedClasses()) {
+        add(classes, getInternalClsName(cls), cls);
+      }
+      myClasses = classes;
+      // Names recorded again meanwhile are kept with the new number.
+      for (Map.Entry<String, Integer> entry : myLoadedAfterScan.entrySet()) {
+        if (classes.containsKey(entry.getKey()) || entry.getValue() < scansCount - 1) {
+          myLoadedAfterScan.remove(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    private static void add(Map<String, List<WeakReference<Class<?>>>> index, String internalClsName, Class<?> cls) {
+      List<WeakReference<Class<?>>> classes = index.get(internalClsName);
+      if (classes == null) {
+        classes = new ArrayList<>(1);
+        index.put(internalClsName, classes);
+      }
+      for (WeakReference<Class<?>> reference : classes) {
+        if (reference.get() == cls) {
+          return;
+        }
+      }
+      classes.add(new WeakReference<Class<?>>(cls));
     }
   }
 
-  private static class ConcurrentIdentityHashMap {
-    private final Map<Object, CollectionInstanceLock> myContainer = new IdentityHashMap<>();
-    private final ReentrantLock myLock = new ReentrantLock();
+  /**
+   * Instances of transformed classes which are watched by collection breakpoints.
+   * <p>
+   * Instrumented methods are called on every instance of a transformed class, e.g. on all ArrayLists in the JVM,
+   * so the lookup of an unwatched instance must be cheap. A bit set indexed by identity hash codes
+   * answers most of the negative lookups without locks and without touching the map.
+   */
+  private static class InstanceFilters {
+    private static final int FILTER_BITS = 1 << 16;
+
+    private final ConcurrentIdentityWeakHashMap<Object, CollectionInstanceLock> myContainer = new ConcurrentIdentityWeakHashMap<>();
+    private final AtomicLongArray myFilter = new AtomicLongArray(FILTER_BITS / 64);
+    private volatile boolean myEmpty = true;
 
     public void add(Object obj) {
-      myLock.lock();
-      try {
-        if (!myContainer.containsKey(obj)) {
-          myContainer.put(obj, new CollectionInstanceLock());
+      if (myContainer.get(obj) == null) {
+        myContainer.putIfAbsent(obj, new CollectionInstanceLock());
+      }
+      // bits are never cleared, a stale bit only costs a map lookup
+      int bit = System.identityHashCode(obj) & (FILTER_BITS - 1);
+      int index = bit >>> 6;
+      long mask = 1L << bit;
+      long word;
+      do {
+        word = myFilter.get(index);
+      }
+      while ((word & mask) == 0 && !myFilter.compareAndSet(index, word, word | mask));
+      myEmpty = false;
+    }
+
+    public CollectionInstanceLock get(Object obj) {
+      if (myEmpty) {
+        return null;
+      }
+      int bit = System.identityHashCode(obj) & (FILTER_BITS - 1);
+      if ((myFilter.get(bit >>> 6) & (1L << bit)) == 0) {
+        return null;
+      }
+      return myContainer.get(obj);
+    }
+  }
+
+  /**
+   * Delegates to the watched collection, mutating methods known to the agent capture modifications
+   * the same way as the transformed collection classes do. Only the watched instance pays for this,
+   * collection classes are not transformed.
+   * Modifications made by other methods or through views (iterators, sublists, key sets, etc.) are not captured.
+   */
+  private static class CollectionProxyHandler implements InvocationHandler, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // mutating default methods unknown to the agent, their modifications are found by comparing snapshots
+    private static final Set<String> SNAPSHOT_METHOD_NAMES = new HashSet<>(Arrays.asList("replaceAll", "sort"));
+    private static final KnownMethod NOT_KNOWN = new ImmutableMethod("");
+
+    private final Object myDelegate;
+    private final transient KnownMethodsSet myKnownMethods;
+    // known methods by the proxied methods, NOT_KNOWN for the others, so the descriptor is built once per method
+    private final transient ConcurrentHashMap<Method, KnownMethod> myMethodsCache = new ConcurrentHashMap<>();
+    private final transient boolean myConcurrent;
+    private final transient CollectionInstanceLock myLock = new CollectionInstanceLock();
+
+    private CollectionProxyHandler(Object delegate, KnownMethodsSet knownMethods) {
+      myDelegate = delegate;
+      myKnownMethods = knownMethods;
+      myConcurrent = isConcurrentCollection(getInternalClsName(delegate.getClass()));
+    }
+
+    // the delegate is serialized, a deserialized proxy gets a new handler for it
+    private Object readResolve() {
+      return new CollectionProxyHandler(myDelegate, getProxyKnownMethods(myDelegate.getClass()));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return invokeDelegate(method, args);
+      }
+      KnownMethod knownMethod = getKnownMethod(method);
+      if (knownMethod != NOT_KNOWN) {
+        return knownMethod.isMutable() ? invokeKnownMethod(proxy, knownMethod, method, args) : invokeDelegate(method, args);
+      }
+      if (SNAPSHOT_METHOD_NAMES.contains(method.getName())) {
+        return invokeWithSnapshots(proxy, method, args);
+      }
+      return invokeDelegate(method, args);
+    }
+
+    private KnownMethod getKnownMethod(Method method) {
+      KnownMethod knownMethod = myMethodsCache.get(method);
+      if (knownMethod == null) {
+        knownMethod = myKnownMethods.get(method.getName() + Type.getMethodDescriptor(method));
+        if (knownMethod == null) {
+          knownMethod = NOT_KNOWN;
         }
+        myMethodsCache.put(method, knownMethod);
+      }
+      return knownMethod;
+    }
+
+    private Object invokeKnownMethod(Object proxy, KnownMethod knownMethod, Method method, Object[] args) throws Throwable {
+      boolean shouldSynchronize = knownMethod.shouldSynchronize(myConcurrent);
+      boolean shouldCapture = myLock.lock(shouldSynchronize);
+      try {
+        Object state = knownMethod.beforeCall(shouldCapture, proxy, args);
+        Object result = invokeDelegate(method, args);
+        knownMethod.captureModification(shouldCapture, proxy, args, result, state);
+        return result;
       }
       finally {
-        myLock.unlock();
+        myLock.unlock(shouldSynchronize);
       }
     }
 
-    public CollectionInstanceLock get(Object obj) {
-      myLock.lock();
+    private Object invokeWithSnapshots(Object proxy, Method method, Object[] args) throws Throwable {
+      boolean shouldCapture = myLock.lock(true);
       try {
-        return myContainer.get(obj);
+        CollectionSnapshot oldElements = shouldCapture ? CollectionSnapshot.create(myDelegate) : null;
+        Object result = invokeDelegate(method, args);
+        if (oldElements != null) {
+          ArrayList<Modification> modifications = getModifications(oldElements, CollectionSnapshot.create(myDelegate));
+          if (!modifications.isEmpty()) {
+            saveCollectionModifications(proxy, modifications);
+          }
+        }
+        return result;
       }
       finally {
-        myLock.unlock();
+        myLock.unlock(true);
+      }
+    }
+
+    private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+      try {
+        return method.invoke(myDelegate, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
       }
     }
   }
 
   public static class CollectionInstanceLock {
     private final ReentrantLock myLock = new ReentrantLock();
-    private final ThreadLocal<Integer> myMethodEnterNumber = new ThreadLocal<>();
+    private final ThreadLocal<Integer> myMethodEnterNumber = new ThreadLocal<Integer>() {
+      @Override
+      protected Integer initialValue() {
+        return 0;
+      }
+    };
 
     private CollectionInstanceLock() {
-      myMethodEnterNumber.set(0);
     }
 
     public boolean lock(boolean shouldSynchronized) {
@@ -1024,7 +1929,43 @@ public class CollectionBreakpointInstrumentor {
       return myIsMutable;
     }
 
-    abstract public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar);
+    /**
+     * Known methods capture modifications without a copy of the collection, so there is nothing to synchronize
+     * in collections which are not thread-safe.
+     * Methods of concurrent collections may run in parallel, so the values read before and after the call,
+     * as by {@link KeyModificationMethod}, could include the changes of other threads without the instance lock.
+     */
+    boolean shouldSynchronize(boolean concurrentCollection) {
+      return concurrentCollection && isMutable();
+    }
+
+    /**
+     * The type of the value computed at the method start and passed to the capture code, null if it's not needed.
+     */
+    Type getStateType() {
+      return null;
+    }
+
+    /**
+     * Puts the state value on the stack at the method start.
+     */
+    int addBeforeCallCode(MethodVisitor mv, int shouldCaptureVar) {
+      return 0;
+    }
+
+    abstract public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar);
+
+    /**
+     * Proxy mode counterpart of {@link #addBeforeCallCode}, returns the state passed to {@link #captureModification}.
+     */
+    Object beforeCall(boolean shouldCapture, Object collectionInstance, Object[] args) {
+      return null;
+    }
+
+    /**
+     * Proxy mode counterpart of {@link #addCaptureModificationCode}, called when the method returns normally.
+     */
+    abstract void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state);
 
     @Override
     public boolean equals(Object obj) {
@@ -1043,9 +1984,13 @@ public class CollectionBreakpointInstrumentor {
     }
 
     @Override
-    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar) {
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
       return 0;
     }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+    }
   }
 
   private static class ReturnsBooleanMethod extends KnownMethod {
@@ -1057,7 +2002,7 @@ public class CollectionBreakpointInstrumentor {
     }
 
     @Override
-    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar) {
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
       mv.visitInsn(Opcodes.DUP);
       mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
       mv.visitInsn(Opcodes.SWAP);
@@ -1071,6 +2016,11 @@ public class CollectionBreakpointInstrumentor {
                          false);
       return 5;
     }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureCollectionModification(shouldCapture, (Boolean)result, collectionInstance, args[0], myIsAddition);
+    }
   }
 
   private static class PutMethod extends KnownMethod {
@@ -1079,7 +2029,7 @@ public class CollectionBreakpointInstrumentor {
     }
 
     @Override
-    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar) {
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
       mv.visitInsn(Opcodes.DUP);
       mv.visitVarInsn(Opcodes.ALOAD, 2);
       Label label = new Label();
@@ -1109,6 +2059,11 @@ public class CollectionBreakpointInstrumentor {
                          false);
       return 6;
     }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureCollectionModification(shouldCapture, result != args[1], collectionInstance, createPair(args[0], args[1]), true);
+    }
   }
 
   private static class RemoveKeyMethod extends KnownMethod {
@@ -1117,7 +2072,7 @@ public class CollectionBreakpointInstrumentor {
     }
 
     @Override
-    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar) {
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
       mv.visitInsn(Opcodes.DUP);
       mv.visitInsn(Opcodes.DUP);
       Label label = new Label();
@@ -1150,5 +2105,428 @@ public class CollectionBreakpointInstrumentor {
                          false);
       return 7;
     }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureCollectionModification(shouldCapture, result != null, collectionInstance, createPair(args[0], result), false);
+    }
+  }
+
+  private static class SetMethod extends KnownMethod {
+    private SetMethod() {
+      super("set(ILjava/lang/Object;)Ljava/lang/Object;", true);
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitVarInsn(Opcodes.ALOAD, 2);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_ELEMENT_REPLACEMENT_METHOD_NAME,
+                         CAPTURE_ELEMENT_REPLACEMENT_METHOD_DESC,
+                         false);
+      return 4;
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureElementReplacement(shouldCapture, collectionInstance, result, args[1]);
+    }
+  }
+
+  private static class AddArgumentMethod extends KnownMethod {
+    private final int myElementArgIndex;
+
+    private AddArgumentMethod(String desc, int elementArgIndex) {
+      super(desc, true);
+      myElementArgIndex = elementArgIndex;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, myElementArgIndex);
+      mv.visitLdcInsn(true);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_ELEMENT_MODIFICATION_METHOD_NAME,
+                         CAPTURE_ELEMENT_MODIFICATION_METHOD_DESC,
+                         false);
+      return 4;
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureElementModification(shouldCapture, collectionInstance, args[myElementArgIndex - 1], true);
+    }
+  }
+
+  private static class RemoveReturnedMethod extends KnownMethod {
+    // poll-like methods return null if there is nothing to remove
+    private final boolean myReturnsNullIfEmpty;
+
+    private RemoveReturnedMethod(String desc, boolean returnsNullIfEmpty) {
+      super(desc, true);
+      myReturnsNullIfEmpty = returnsNullIfEmpty;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitInsn(Opcodes.SWAP);
+      if (myReturnsNullIfEmpty) {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                           getInstrumentorClassName(),
+                           CAPTURE_POLLED_ELEMENT_METHOD_NAME,
+                           CAPTURE_POLLED_ELEMENT_METHOD_DESC,
+                           false);
+        return 3;
+      }
+      mv.visitLdcInsn(false);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_ELEMENT_MODIFICATION_METHOD_NAME,
+                         CAPTURE_ELEMENT_MODIFICATION_METHOD_DESC,
+                         false);
+      return 4;
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      if (myReturnsNullIfEmpty) {
+        capturePolledElement(shouldCapture, collectionInstance, result);
+      }
+      else {
+        captureElementModification(shouldCapture, collectionInstance, result, false);
+      }
+    }
+  }
+
+  private static class PollEntryMethod extends KnownMethod {
+    private PollEntryMethod(String desc) {
+      super(desc, true);
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitInsn(Opcodes.SWAP);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_POLLED_ENTRY_METHOD_NAME,
+                         CAPTURE_POLLED_ENTRY_METHOD_DESC,
+                         false);
+      return 3;
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      capturePolledEntry(shouldCapture, collectionInstance, result);
+    }
+  }
+
+  /**
+   * Map methods reporting the change of the key passed as the first argument by their result,
+   * the result and the arguments are passed to the capture method, nothing is read from the map before the call.
+   */
+  private abstract static class KeyResultMethod extends KnownMethod {
+    private final String myCaptureMethodName;
+    private final String myCaptureMethodDesc;
+    private final int myArgumentsCount;
+
+    private KeyResultMethod(String desc, String captureMethodName, String captureMethodDesc) {
+      super(desc, true);
+      myCaptureMethodName = captureMethodName;
+      myCaptureMethodDesc = captureMethodDesc;
+      myArgumentsCount = Type.getArgumentTypes(desc.substring(desc.indexOf('('))).length;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitInsn(Opcodes.SWAP);
+      for (int i = 0; i <= myArgumentsCount; i++) {
+        mv.visitVarInsn(Opcodes.ALOAD, i);
+      }
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         myCaptureMethodName,
+                         myCaptureMethodDesc,
+                         false);
+      return myArgumentsCount + 3;
+    }
+  }
+
+  private static class ConditionalRemoveMethod extends KeyResultMethod {
+    private ConditionalRemoveMethod() {
+      super("remove(Ljava/lang/Object;Ljava/lang/Object;)Z", CAPTURE_CONDITIONAL_REMOVAL_METHOD_NAME, CAPTURE_CONDITIONAL_REMOVAL_METHOD_DESC);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureConditionalRemoval(shouldCapture, (Boolean)result, collectionInstance, args[0], args[1]);
+    }
+  }
+
+  private static class ConditionalReplaceMethod extends KeyResultMethod {
+    private ConditionalReplaceMethod() {
+      super("replace(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Z",
+            CAPTURE_CONDITIONAL_REPLACEMENT_METHOD_NAME, CAPTURE_CONDITIONAL_REPLACEMENT_METHOD_DESC);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureConditionalReplacement(shouldCapture, (Boolean)result, collectionInstance, args[0], args[1], args[2]);
+    }
+  }
+
+  private static class ReplaceMethod extends KeyResultMethod {
+    private ReplaceMethod() {
+      super("replace(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", CAPTURE_REPLACEMENT_METHOD_NAME, CAPTURE_REPLACEMENT_METHOD_DESC);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureReplacement(shouldCapture, result, collectionInstance, args[0], args[1]);
+    }
+  }
+
+  private static class PutIfAbsentMethod extends KeyResultMethod {
+    private PutIfAbsentMethod() {
+      super("putIfAbsent(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", CAPTURE_PUT_IF_ABSENT_METHOD_NAME, CAPTURE_PUT_IF_ABSENT_METHOD_DESC);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      capturePutIfAbsent(shouldCapture, result, collectionInstance, args[0], args[1]);
+    }
+  }
+
+  /**
+   * Map methods changing the value of the key passed as the first argument:
+   * the value is read before and after the call, and the difference is reported.
+   * In concurrent maps the call holds the instance lock, see {@link KnownMethod#shouldSynchronize}.
+   */
+  private static class KeyModificationMethod extends KnownMethod {
+    private KeyModificationMethod(String desc) {
+      super(desc, true);
+    }
+
+    @Override
+    Type getStateType() {
+      return Type.getType(OBJECT_TYPE);
+    }
+
+    @Override
+    int addBeforeCallCode(MethodVisitor mv, int shouldCaptureVar) {
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, 1);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         BEFORE_KEY_MODIFICATION_METHOD_NAME,
+                         BEFORE_KEY_MODIFICATION_METHOD_DESC,
+                         false);
+      return 3;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, 1);
+      mv.visitVarInsn(Opcodes.ALOAD, stateVar);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_KEY_MODIFICATION_METHOD_NAME,
+                         CAPTURE_KEY_MODIFICATION_METHOD_DESC,
+                         false);
+      return 4;
+    }
+
+    @Override
+    Object beforeCall(boolean shouldCapture, Object collectionInstance, Object[] args) {
+      return beforeKeyModification(shouldCapture, collectionInstance, args[0]);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureKeyModification(shouldCapture, collectionInstance, args[0], state);
+    }
+  }
+
+  private static class PutAllMethod extends KnownMethod {
+    private PutAllMethod() {
+      super("putAll(Ljava/util/Map;)V", true);
+    }
+
+    @Override
+    Type getStateType() {
+      return Type.getType(OBJECT_TYPE);
+    }
+
+    @Override
+    int addBeforeCallCode(MethodVisitor mv, int shouldCaptureVar) {
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, 1);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         BEFORE_PUT_ALL_METHOD_NAME,
+                         BEFORE_PUT_ALL_METHOD_DESC,
+                         false);
+      return 3;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, stateVar);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_PUT_ALL_METHOD_NAME,
+                         CAPTURE_PUT_ALL_METHOD_DESC,
+                         false);
+      return 2;
+    }
+
+    @Override
+    Object beforeCall(boolean shouldCapture, Object collectionInstance, Object[] args) {
+      return beforePutAll(shouldCapture, collectionInstance, args[0]);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      capturePutAll(collectionInstance, state);
+    }
+  }
+
+  /**
+   * {@code addAll} reports the added elements collected before the call, no copy of the collection is needed.
+   */
+  private static class AddAllMethod extends KnownMethod {
+    private final int myAddedArgIndex;
+
+    private AddAllMethod(String desc, int addedArgIndex) {
+      super(desc, true);
+      myAddedArgIndex = addedArgIndex;
+    }
+
+    @Override
+    Type getStateType() {
+      return Type.getType(OBJECT_TYPE);
+    }
+
+    @Override
+    int addBeforeCallCode(MethodVisitor mv, int shouldCaptureVar) {
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, myAddedArgIndex);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         BEFORE_ADD_ALL_METHOD_NAME,
+                         BEFORE_ADD_ALL_METHOD_DESC,
+                         false);
+      return 3;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitVarInsn(Opcodes.ALOAD, stateVar);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_ADDITIONS_METHOD_NAME,
+                         CAPTURE_ADDITIONS_METHOD_DESC,
+                         false);
+      return 3;
+    }
+
+    @Override
+    Object beforeCall(boolean shouldCapture, Object collectionInstance, Object[] args) {
+      return beforeAddAll(shouldCapture, collectionInstance, args[myAddedArgIndex - 1]);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureAdditions((Boolean)result, collectionInstance, (Object[])state);
+    }
+  }
+
+  /**
+   * Methods which can only remove elements: the copy made before the call is compared in a single pass,
+   * and not compared at all if the method reports no changes.
+   */
+  private static class RemovalMethod extends KnownMethod {
+    private final boolean myReturnsBoolean;
+
+    private RemovalMethod(String desc) {
+      super(desc, true);
+      myReturnsBoolean = desc.endsWith(")Z");
+    }
+
+    @Override
+    boolean shouldSynchronize(boolean concurrentCollection) {
+      return true;
+    }
+
+    @Override
+    Type getStateType() {
+      return Type.getType(SNAPSHOT_TYPE);
+    }
+
+    @Override
+    int addBeforeCallCode(MethodVisitor mv, int shouldCaptureVar) {
+      mv.visitVarInsn(Opcodes.ILOAD, shouldCaptureVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_COLLECTION_COPY_METHOD_NAME,
+                         CAPTURE_COLLECTION_COPY_METHOD_DESC,
+                         false);
+      return 2;
+    }
+
+    @Override
+    public int addCaptureModificationCode(MethodVisitor mv, int shouldCaptureVar, int stateVar) {
+      if (myReturnsBoolean) {
+        mv.visitInsn(Opcodes.DUP);
+      }
+      else {
+        mv.visitLdcInsn(true);
+      }
+      mv.visitVarInsn(Opcodes.ALOAD, stateVar);
+      mv.visitVarInsn(Opcodes.ALOAD, 0);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                         getInstrumentorClassName(),
+                         CAPTURE_REMOVALS_METHOD_NAME,
+                         CAPTURE_REMOVALS_METHOD_DESC,
+                         false);
+      return 3;
+    }
+
+    @Override
+    Object beforeCall(boolean shouldCapture, Object collectionInstance, Object[] args) {
+      return captureCollectionCopy(shouldCapture, collectionInstance);
+    }
+
+    @Override
+    void captureModification(boolean shouldCapture, Object collectionInstance, Object[] args, Object result, Object state) {
+      captureRemovals(!myReturnsBoolean || (Boolean)result, (CollectionSnapshot)state, collectionInstance);
+    }
   }
-}
\ No newline at end of file
+}
@@ -5,81 +5,267 @@ package com.intellij.rt.debugger.agent;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.intellij.rt.debugger.agent.CaptureAgent.getClassName;
 
 public class CollectionBreakpointStorage {
-  private static final ConcurrentMap<CapturedField, FieldHistory> FIELD_MODIFICATIONS_STORAGE;
-  private static final ConcurrentMap<CollectionWrapper, CollectionHistory> COLLECTION_MODIFICATIONS_STORAGE;
+  // Histories are dropped together with their collections and field owners.
+  private static final ConcurrentIdentityWeakHashMap<Object, ConcurrentMap<CapturedField, FieldHistory>> FIELD_MODIFICATIONS_STORAGE;
+  private static final ConcurrentMap<CapturedField, FieldHistory> STATIC_FIELD_MODIFICATIONS_STORAGE;
+  private static final ConcurrentIdentityWeakHashMap<Object, CollectionHistory> COLLECTION_MODIFICATIONS_STORAGE;
   private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
+  private static final StackTraceElement[] EMPTY_STACK = new StackTraceElement[0];
+
+  private static final String HISTORY_SIZE_PROPERTY = "collectionBreakpointsHistorySize";
+  private static final String WEAK_ELEMENTS_PROPERTY = "collectionBreakpointsWeakElements";
+  private static final String LAZY_STACKS_PROPERTY = "collectionBreakpointsLazyStacks";
+  private static final String LAZY_STACK_DEPTH_PROPERTY = "collectionBreakpointsLazyStackDepth";
+  private static final long CLEANUP_PERIOD_MS = 1000;
+
+  // Interned frames and stacks, modifications from the same place share them.
+  private static final int MAX_INTERNED_FRAMES = 100000;
+  private static final int MAX_INTERNED_STACKS = 10000;
+  private static final ConcurrentMap<StackTraceElement, StackTraceElement> INTERNED_FRAMES = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<StackKey, StackTraceElement[]> INTERNED_STACKS = new ConcurrentHashMap<>();
+
+  // Watched fields by ids, copied on write.
+  private static final Map<String, Integer> FIELD_IDS = new HashMap<>();
+  private static volatile CapturedField[] FIELDS = new CapturedField[0];
 
   private static boolean ENABLED; // set from debugger
 
+  private static int HISTORY_SIZE = Integer.MAX_VALUE; // whole histories are kept unless the size is set
+  // Histories are keyed weakly, but they hold the elements and the field values strongly by default, so removed
+  // elements stay visible. An element or a field value referring back to its collection or field owner keeps the history
+  // then, weak elements avoid this.
+  private static boolean WEAK_ELEMENTS;
+  private static boolean LAZY_STACKS;
+  private static int LAZY_STACK_DEPTH; // 0 for the whole stack
+
   static {
-    FIELD_MODIFICATIONS_STORAGE = new ConcurrentHashMap<>();
-    COLLECTION_MODIFICATIONS_STORAGE = new ConcurrentHashMap<>();
+    FIELD_MODIFICATIONS_STORAGE = new ConcurrentIdentityWeakHashMap<>();
+    STATIC_FIELD_MODIFICATIONS_STORAGE = new ConcurrentHashMap<>();
+    COLLECTION_MODIFICATIONS_STORAGE = new ConcurrentIdentityWeakHashMap<>();
+  }
+
+  static void init(Properties properties) {
+    HISTORY_SIZE = Integer.MAX_VALUE;
+    String historySize = properties.getProperty(HISTORY_SIZE_PROPERTY);
+    if (historySize != null) {
+      try {
+        HISTORY_SIZE = Math.max(1, Integer.parseInt(historySize));
+      }
+      catch (NumberFormatException e) {
+        System.err.println("Collection breakpoints: incorrect history size, keeping whole histories");
+      }
+    }
+    WEAK_ELEMENTS = Boolean.parseBoolean(properties.getProperty(WEAK_ELEMENTS_PROPERTY, "false"));
+    LAZY_STACKS = Boolean.parseBoolean(properties.getProperty(LAZY_STACKS_PROPERTY, "false"));
+    try {
+      LAZY_STACK_DEPTH = Math.max(0, Integer.parseInt(properties.getProperty(LAZY_STACK_DEPTH_PROPERTY, "0")));
+    }
+    catch (NumberFormatException e) {
+      System.err.println("Collection breakpoints: incorrect lazy stack depth, capturing whole stacks");
+    }
+
+    // stale entries are also removed on insertion, but watched collections may stop changing
+    DebuggerAgent.SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          COLLECTION_MODIFICATIONS_STORAGE.processQueue();
+          FIELD_MODIFICATIONS_STORAGE.processQueue();
+        }
+        catch (Throwable e) {
+          e.printStackTrace();
+        }
+      }
+    }, CLEANUP_PERIOD_MS, CLEANUP_PERIOD_MS, TimeUnit.MILLISECONDS);
   }
 
-  public static void saveFieldModification(String internalClsName,
-                                           String fieldName,
+  /**
+   * Returns the id of the field, which is passed to {@link #saveFieldModification} by the instrumented code.
+   * Ids are assigned at transformation time, so class names are converted and keys are created only once.
+   */
+  static int getFieldId(String internalClsName, String fieldName) {
+    synchronized (FIELD_IDS) {
+      String key = internalClsName + '.' + fieldName;
+      Integer id = FIELD_IDS.get(key);
+      if (id == null) {
+        id = FIELDS.length;
+        CapturedField[] fields = Arrays.copyOf(FIELDS, id + 1);
+        fields[id] = new CapturedField(getClassName(internalClsName), fieldName);
+        FIELDS = fields;
+        FIELD_IDS.put(key, id);
+      }
+      return id;
+    }
+  }
+
+  public static void saveFieldModification(int fieldId,
                                            Object clsInstance,
                                            Object collectionInstance,
                                            boolean shouldSaveStack) {
     if (!ENABLED) {
       return;
     }
-    String clsName = getClassName(internalClsName);
-    CapturedField field = new CapturedField(clsName, fieldName, clsInstance);
-    FIELD_MODIFICATIONS_STORAGE.putIfAbsent(field, new FieldHistory());
-    FieldHistory history = FIELD_MODIFICATIONS_STORAGE.get(field);
-    Throwable exception = shouldSaveStack ? new Throwable() : null;
-    history.add(new FieldModificationInfo(exception, collectionInstance));
+    CapturedField field = FIELDS[fieldId];
+    ConcurrentMap<CapturedField, FieldHistory> histories = getFieldHistories(clsInstance, true);
+    FieldHistory history = histories.get(field);
+    if (history == null) {
+      FieldHistory newHistory = new FieldHistory();
+      history = histories.putIfAbsent(field, newHistory);
+      if (history == null) {
+        history = newHistory;
+      }
+    }
+    Object stack = shouldSaveStack ? captureStack(false) : EMPTY_STACK;
+    history.add(new FieldModificationInfo(stack, collectionInstance));
   }
 
   public static void saveCollectionModification(Object collectionInstance, Object elem, boolean isAddition) {
     if (!ENABLED) {
       return;
     }
-    CollectionWrapper wrapper = new CollectionWrapper(collectionInstance);
-    COLLECTION_MODIFICATIONS_STORAGE.putIfAbsent(wrapper, new CollectionHistory());
-    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(wrapper);
-    Throwable exception = new Throwable();
-    history.add(new CollectionModificationInfo(exception, elem, isAddition));
+    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(collectionInstance);
+    if (history == null) {
+      CollectionHistory newHistory = new CollectionHistory();
+      history = COLLECTION_MODIFICATIONS_STORAGE.putIfAbsent(collectionInstance, newHistory);
+      if (history == null) {
+        history = newHistory;
+      }
+    }
+    history.add(new CollectionModificationInfo(captureStack(true), elem, isAddition));
   }
 
   @SuppressWarnings("unused")
   public static Object[] getCollectionModifications(Object collectionInstance) {
-    CollectionWrapper wrapper = new CollectionWrapper(collectionInstance);
-    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(wrapper);
+    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(collectionInstance);
     return history == null ? EMPTY_OBJECT_ARRAY : history.get();
   }
 
+  /**
+   * Returns a page of the collection modifications with their stacks, so the IDE doesn't need a call per modification.
+   * <p>
+   * The first array element is a string with the number of modifications in the history, the number of evicted ones
+   * and, for every modification in the page, its sequence number, whether it is an addition and its stack,
+   * encoded like async stack traces. The modified elements follow in the same order.
+   * <p>
+   * Modifications are numbered from the first one ever captured, evicted ones included, so the numbers stay valid
+   * while the oldest modifications are evicted. The next page starts after the last returned number.
+   *
+   * @param offset        the sequence number of the first modification to select, older ones are evicted if it is less
+   *                      than the number of evicted modifications
+   * @param count         the maximum number of modifications to return
+   * @param elementFilter if not null, only modifications of equal elements are selected, map entries are compared by keys
+   */
+  @SuppressWarnings("unused")
+  public static Object[] getCollectionModificationsPage(Object collectionInstance, long offset, int count, Object elementFilter)
+    throws IOException {
+    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(collectionInstance);
+    if (history == null) {
+      history = new CollectionHistory();
+    }
+    int size;
+    long evictedCount;
+    Object[] infos;
+    int from;
+    List<Integer> indices = new ArrayList<>();
+    history.myLock.lock();
+    try {
+      size = history.size();
+      evictedCount = history.getEvictedCount();
+      from = (int)Math.max(0, Math.min(offset - evictedCount, size));
+      // only the page is copied if there is no filter
+      infos = history.toArray(from, elementFilter == null ? count : Integer.MAX_VALUE);
+    }
+    finally {
+      history.myLock.unlock();
+    }
+    for (int i = 0; i < infos.length && indices.size() < count; i++) {
+      if (elementFilter == null || matches(((CollectionModificationInfo)infos[i]).getElement(), elementFilter)) {
+        indices.add(i);
+      }
+    }
+
+    Object[] result = new Object[indices.size() + 1];
+    try (ByteArrayOutputStream bas = new ByteArrayOutputStream();
+         DataOutputStream dos = new DataOutputStream(bas)) {
+      dos.writeInt(size);
+      dos.writeLong(evictedCount);
+      dos.writeInt(indices.size());
+      for (int i = 0; i < indices.size(); i++) {
+        int index = indices.get(i);
+        CollectionModificationInfo info = (CollectionModificationInfo)infos[index];
+        dos.writeLong(evictedCount + from + index);
+        dos.writeBoolean(info.isAddition());
+        List<StackTraceElement> stackTrace = info.getStackTrace();
+        dos.writeInt(stackTrace.size());
+        CaptureStorage.writeAsyncStackTraceToStream(stackTrace, dos);
+        result[i + 1] = info.getElement();
+      }
+      result[0] = bas.toString(StandardCharsets.ISO_8859_1.name());
+    }
+    return result;
+  }
+
+  private static boolean matches(Object element, Object filter) {
+    if (element instanceof Map.Entry) {
+      element = ((Map.Entry<?, ?>)element).getKey();
+    }
+    return filter.equals(element);
+  }
+
+  /**
+   * Returns the number of the oldest modifications of the collection which were dropped from the history.
+   */
+  @SuppressWarnings("unused")
+  public static long getEvictedCollectionModificationsCount(Object collectionInstance) {
+    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(collectionInstance);
+    return history == null ? 0 : history.getEvictedCount();
+  }
+
   @SuppressWarnings("unused")
   public static Object[] getFieldModifications(String clsName, String fieldName, Object clsInstance) {
-    CapturedField field = new CapturedField(clsName, fieldName, clsInstance);
-    FieldHistory history = FIELD_MODIFICATIONS_STORAGE.get(field);
+    FieldHistory history = getFieldHistory(clsName, fieldName, clsInstance);
     return history == null ? EMPTY_OBJECT_ARRAY : history.getCollectionInstances();
   }
 
+  @SuppressWarnings("unused")
+  public static long getEvictedFieldModificationsCount(String clsName, String fieldName, Object clsInstance) {
+    FieldHistory history = getFieldHistory(clsName, fieldName, clsInstance);
+    return history == null ? 0 : history.getEvictedCount();
+  }
+
+  /**
+   * Returns the stack of the modification with the given sequence number, which is its index in the modifications
+   * returned together with the number of evicted ones, empty if the modification is evicted.
+   */
   @SuppressWarnings("unused")
   public static String getStack(Object collectionInstance, int modificationIndex) throws IOException {
-    CollectionWrapper wrapper = new CollectionWrapper(collectionInstance);
-    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(wrapper);
+    CollectionHistory history = COLLECTION_MODIFICATIONS_STORAGE.get(collectionInstance);
     return history == null ? "" : wrapInString(history.get(modificationIndex));
   }
 
+  /**
+   * Returns the stack of the field modification with the given sequence number, see {@link #getStack(Object, int)}.
+   */
   @SuppressWarnings("unused")
   public static String getStack(String clsName, String fieldName, Object clsInstance, int modificationIndex) throws IOException {
-    CapturedField field = new CapturedField(clsName, fieldName, clsInstance);
-    FieldHistory history = FIELD_MODIFICATIONS_STORAGE.get(field);
+    FieldHistory history = getFieldHistory(clsName, fieldName, clsInstance);
     return history == null ? "" : wrapInString(history.get(modificationIndex));
   }
 
@@ -100,73 +286,189 @@ public class CollectionBreakpointStorage {
     }
   }
 
-  private static class FieldHistory {
-    private final ArrayList<FieldModificationInfo> myModifications = new ArrayList<>();
-    private final ReentrantLock myLock = new ReentrantLock();
+  private static ConcurrentMap<CapturedField, FieldHistory> getFieldHistories(Object clsInstance, boolean create) {
+    if (clsInstance == null) {
+      return STATIC_FIELD_MODIFICATIONS_STORAGE;
+    }
+    ConcurrentMap<CapturedField, FieldHistory> histories = FIELD_MODIFICATIONS_STORAGE.get(clsInstance);
+    if (histories == null && create) {
+      ConcurrentMap<CapturedField, FieldHistory> newHistories = new ConcurrentHashMap<>();
+      histories = FIELD_MODIFICATIONS_STORAGE.putIfAbsent(clsInstance, newHistories);
+      if (histories == null) {
+        histories = newHistories;
+      }
+    }
+    return histories;
+  }
+
+  private static FieldHistory getFieldHistory(String clsName, String fieldName, Object clsInstance) {
+    ConcurrentMap<CapturedField, FieldHistory> histories = getFieldHistories(clsInstance, false);
+    return histories == null ? null : histories.get(new CapturedField(clsName, fieldName));
+  }
 
-    private void add(FieldModificationInfo info) {
-      myLock.lock();
-      try {
-        myModifications.add(info);
+  /**
+   * Captures the current stack without the agent frames on top of it.
+   * Returns a {@code StackTraceElement[]} or, in the lazy mode, a {@link LazyStack} resolved on demand.
+   * <p>
+   * The agent frames are skipped by name, as the capture helpers, the proxy handler and the known methods
+   * reach the storage through different numbers of frames.
+   *
+   * @param skipCollectionFrame whether the frame of the modified collection's method, or of its proxy, follows the agent frames
+   */
+  private static Object captureStack(boolean skipCollectionFrame) {
+    if (!LAZY_STACKS) {
+      return getStackTrace(new Throwable(), skipCollectionFrame);
+    }
+    // An unresolved throwable is the cheapest handle for the whole stack,
+    // walking is only cheaper when few top frames are needed.
+    if (LAZY_STACK_DEPTH > 0 && StackWalkerHelper.isAvailable()) {
+      // the walker skips the agent frames itself
+      int skippedWalkerFrames = skipCollectionFrame ? 1 : 0;
+      List<Object> frames = StackWalkerHelper.getTopFrames(LAZY_STACK_DEPTH + skippedWalkerFrames);
+      if (frames != null) {
+        return new LazyStack(frames.subList(Math.min(skippedWalkerFrames, frames.size()), frames.size()), null, false);
       }
-      finally {
-        myLock.unlock();
+    }
+    // the throwable is resolved into stack trace elements only in getStackTrace
+    return new LazyStack(null, new Throwable(), skipCollectionFrame);
+  }
+
+  private static StackTraceElement[] getStackTrace(Throwable throwable, boolean skipCollectionFrame) {
+    StackTraceElement[] stackTrace = throwable.getStackTrace();
+    int skippedFrames = 0;
+    while (skippedFrames < stackTrace.length && isAgentFrame(stackTrace[skippedFrames])) {
+      skippedFrames++;
+    }
+    if (skipCollectionFrame) {
+      skippedFrames++;
+    }
+    if (skippedFrames > stackTrace.length - 1) {
+      return EMPTY_STACK;
+    }
+    return intern(Arrays.copyOfRange(stackTrace, skippedFrames, stackTrace.length));
+  }
+
+  private static boolean isAgentFrame(StackTraceElement element) {
+    String className = element.getClassName();
+    return className.startsWith(CollectionBreakpointStorage.class.getName()) ||
+           className.startsWith(CollectionBreakpointInstrumentor.class.getName());
+  }
+
+  private static StackTraceElement[] intern(StackTraceElement[] stack) {
+    StackKey key = new StackKey(stack);
+    StackTraceElement[] interned = INTERNED_STACKS.get(key);
+    if (interned != null) {
+      return interned;
+    }
+    for (int i = 0; i < stack.length; i++) {
+      StackTraceElement frame = INTERNED_FRAMES.get(stack[i]);
+      if (frame != null) {
+        stack[i] = frame;
       }
+      else if (INTERNED_FRAMES.size() < MAX_INTERNED_FRAMES) {
+        INTERNED_FRAMES.putIfAbsent(stack[i], stack[i]);
+      }
+    }
+    if (INTERNED_STACKS.size() < MAX_INTERNED_STACKS) {
+      interned = INTERNED_STACKS.putIfAbsent(key, stack);
     }
+    return interned != null ? interned : stack;
+  }
 
-    private FieldModificationInfo get(int modificationIndex) {
+  /**
+   * Keeps the last {@link #HISTORY_SIZE} entries, older entries are evicted and only counted.
+   * Entries are numbered from the first one ever added, so the number of an entry doesn't change on eviction.
+   */
+  private static class History<T> {
+    private Object[] myEntries = new Object[Math.min(16, HISTORY_SIZE)];
+    private int myStart;
+    private int mySize;
+    private long myEvictedCount;
+    final ReentrantLock myLock = new ReentrantLock(); // reentrant, so a page is read consistently
+
+    void add(T entry) {
       myLock.lock();
       try {
-        return myModifications.get(modificationIndex);
+        if (mySize == myEntries.length && mySize < HISTORY_SIZE) {
+          grow();
+        }
+        if (mySize == myEntries.length) {
+          myEntries[myStart] = entry;
+          myStart = (myStart + 1) % myEntries.length;
+          myEvictedCount++;
+        }
+        else {
+          myEntries[(myStart + mySize) % myEntries.length] = entry;
+          mySize++;
+        }
       }
       finally {
         myLock.unlock();
       }
     }
 
-    private Object[] getCollectionInstances() {
+    private void grow() {
+      Object[] entries = new Object[(int)Math.min((long)myEntries.length * 2, HISTORY_SIZE)];
+      for (int i = 0; i < mySize; i++) {
+        entries[i] = myEntries[(myStart + i) % myEntries.length];
+      }
+      myEntries = entries;
+      myStart = 0;
+    }
+
+    /**
+     * Returns the entry with the given sequence number, null if it is evicted.
+     */
+    @SuppressWarnings("unchecked")
+    T get(long sequenceNumber) {
       myLock.lock();
       try {
-        ArrayList<Object> collectionInstances = new ArrayList<>();
-        for (FieldModificationInfo info : myModifications) {
-          collectionInstances.add(info.myCollectionInstance);
+        long index = sequenceNumber - myEvictedCount;
+        if (index < 0) {
+          return null;
         }
-        return collectionInstances.toArray();
+        if (index >= mySize) {
+          throw new IndexOutOfBoundsException("Index: " + sequenceNumber + ", size: " + (myEvictedCount + mySize));
+        }
+        return (T)myEntries[(int)((myStart + index) % myEntries.length)];
       }
       finally {
         myLock.unlock();
       }
     }
-  }
 
-  private static class CollectionHistory {
-    private final ArrayList<CollectionModificationInfo> myOperations = new ArrayList<>();
-    private final ReentrantLock myLock = new ReentrantLock();
+    Object[] toArray() {
+      return toArray(0, Integer.MAX_VALUE);
+    }
 
-    private void add(CollectionModificationInfo info) {
+    Object[] toArray(int from, int count) {
       myLock.lock();
       try {
-        myOperations.add(info);
+        Object[] result = new Object[Math.max(0, Math.min(count, mySize - from))];
+        for (int i = 0; i < result.length; i++) {
+          result[i] = myEntries[(myStart + from + i) % myEntries.length];
+        }
+        return result;
       }
       finally {
         myLock.unlock();
       }
     }
 
-    private Object[] get() {
+    int size() {
       myLock.lock();
       try {
-        return myOperations.toArray();
+        return mySize;
       }
       finally {
         myLock.unlock();
       }
     }
 
-    private CollectionModificationInfo get(int operationIndex) {
+    long getEvictedCount() {
       myLock.lock();
       try {
-        return myOperations.get(operationIndex);
+        return myEvictedCount;
       }
       finally {
         myLock.unlock();
@@ -174,35 +476,98 @@ public class CollectionBreakpointStorage {
     }
   }
 
+  private static class FieldHistory extends History<FieldModificationInfo> {
+    private Object[] getCollectionInstances() {
+      Object[] infos = toArray();
+      Object[] collectionInstances = new Object[infos.length];
+      for (int i = 0; i < infos.length; i++) {
+        collectionInstances[i] = ((FieldModificationInfo)infos[i]).getCollectionInstance();
+      }
+      return collectionInstances;
+    }
+  }
+
+  private static class CollectionHistory extends History<CollectionModificationInfo> {
+    private Object[] get() {
+      return toArray();
+    }
+  }
+
+  private static class LazyStack {
+    private final List<Object> myFrames; // StackWalker frames
+    private final Throwable myThrowable;
+    private final boolean mySkipCollectionFrame;
+
+    private LazyStack(List<Object> frames, Throwable throwable, boolean skipCollectionFrame) {
+      myFrames = frames;
+      myThrowable = throwable;
+      mySkipCollectionFrame = skipCollectionFrame;
+    }
+
+    private StackTraceElement[] resolve() {
+      if (myThrowable != null) {
+        return getStackTrace(myThrowable, mySkipCollectionFrame);
+      }
+      StackTraceElement[] stack = new StackTraceElement[myFrames.size()];
+      for (int i = 0; i < stack.length; i++) {
+        stack[i] = StackWalkerHelper.toStackTraceElement(myFrames.get(i));
+      }
+      return intern(stack);
+    }
+  }
+
   private static class CapturedStackInfo {
-    private final Throwable myException;
+    private Object myStack; // StackTraceElement[] or LazyStack, guarded by this
 
-    private CapturedStackInfo(Throwable exception) {
-      myException = exception;
+    private CapturedStackInfo(Object stack) {
+      myStack = stack;
     }
 
-    public List<StackTraceElement> getStackTrace() {
-      StackTraceElement[] stackTrace = myException.getStackTrace();
-      int startIndex = this instanceof CollectionModificationInfo ? 3 : 2;
-      if (startIndex > stackTrace.length - 1) {
-        return Collections.emptyList();
+    public synchronized List<StackTraceElement> getStackTrace() {
+      if (myStack instanceof LazyStack) {
+        myStack = ((LazyStack)myStack).resolve();
       }
-      return Arrays.asList(stackTrace).subList(startIndex, stackTrace.length);
+      return Collections.unmodifiableList(Arrays.asList((StackTraceElement[])myStack));
     }
   }
 
+  /**
+   * A modification of a collection. With weak elements the element is null once it's collected.
+   */
   private static class CollectionModificationInfo extends CapturedStackInfo {
+    // the element, or its weak reference, or a map entry of weak references to the key and the value
     private final Object myElement;
     private final boolean myIsAddition;
 
-    private CollectionModificationInfo(Throwable exception, Object elem, boolean isAddition) {
-      super(exception);
-      myElement = elem;
+    private CollectionModificationInfo(Object stack, Object elem, boolean isAddition) {
+      super(stack);
+      myElement = WEAK_ELEMENTS ? createWeakElement(elem) : elem;
       myIsAddition = isAddition;
     }
 
+    private static Object createWeakElement(Object elem) {
+      if (elem == null) {
+        return null;
+      }
+      // map modifications are reported as new pairs, nothing else references them
+      if (elem instanceof Map.Entry) {
+        Map.Entry<?, ?> entry = (Map.Entry<?, ?>)elem;
+        return CollectionBreakpointInstrumentor.createPair(new WeakElement(entry.getKey()), new WeakElement(entry.getValue()));
+      }
+      return new WeakElement(elem);
+    }
+
+    // the reference type tells weak elements from the ones captured before the setting was changed
     @SuppressWarnings("unused")
     private Object getElement() {
+      if (myElement instanceof WeakElement) {
+        return ((WeakElement)myElement).get();
+      }
+      if (myElement instanceof Map.Entry && ((Map.Entry<?, ?>)myElement).getKey() instanceof WeakElement) {
+        Map.Entry<?, ?> entry = (Map.Entry<?, ?>)myElement;
+        return CollectionBreakpointInstrumentor.createPair(((WeakElement)entry.getKey()).get(),
+                                                           ((WeakElement)entry.getValue()).get());
+      }
       return myElement;
     }
 
@@ -212,49 +577,42 @@ public class CollectionBreakpointStorage {
     }
   }
 
-  private static class FieldModificationInfo extends CapturedStackInfo {
-    private final Object myCollectionInstance;
-
-    private FieldModificationInfo(Throwable exception, Object collectionInstance) {
-      super(exception);
-      myCollectionInstance = collectionInstance;
+  private static class WeakElement extends WeakReference<Object> {
+    private WeakElement(Object element) {
+      super(element);
     }
   }
 
-  private static class CollectionWrapper {
+  /**
+   * A new value of a field. With weak elements the value is held the same way as collection elements,
+   * as it may refer back to the field owner which keys the history.
+   */
+  private static class FieldModificationInfo extends CapturedStackInfo {
+    // the collection or its weak reference
     private final Object myCollectionInstance;
 
-    private CollectionWrapper(Object collectionInstance) {
-      myCollectionInstance = collectionInstance;
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-      return obj instanceof CollectionWrapper &&
-             ((CollectionWrapper)obj).myCollectionInstance == myCollectionInstance;
+    private FieldModificationInfo(Object stack, Object collectionInstance) {
+      super(stack);
+      myCollectionInstance = WEAK_ELEMENTS && collectionInstance != null ? new WeakElement(collectionInstance) : collectionInstance;
     }
 
-    @Override
-    public int hashCode() {
-      return System.identityHashCode(myCollectionInstance);
+    private Object getCollectionInstance() {
+      return myCollectionInstance instanceof WeakElement ? ((WeakElement)myCollectionInstance).get() : myCollectionInstance;
     }
   }
 
   private static class CapturedField {
     final String myClsName;
     final String myFieldName;
-    final Object myClsInstance;
 
-    private CapturedField(String clsName, String fieldName, Object clsInstance) {
+    private CapturedField(String clsName, String fieldName) {
       myClsName = clsName;
       myFieldName = fieldName;
-      myClsInstance = clsInstance;
     }
 
     @Override
     public boolean equals(Object obj) {
       return obj instanceof CapturedField &&
-             myClsInstance == ((CapturedField)obj).myClsInstance &&
              myFieldName.equals(((CapturedField)obj).myFieldName) &&
              myClsName.equals(((CapturedField)obj).myClsName);
     }
@@ -262,8 +620,27 @@ public class CollectionBreakpointStorage {
     @Override
     public int hashCode() {
       return 31 * myFieldName.hashCode() +
-             13 * myClsName.hashCode() +
-             System.identityHashCode(myClsInstance);
+             13 * myClsName.hashCode();
+    }
+  }
+
+  private static class StackKey {
+    private final StackTraceElement[] myStack;
+    private final int myHash;
+
+    private StackKey(StackTraceElement[] stack) {
+      myStack = stack;
+      myHash = Arrays.hashCode(stack);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof StackKey && Arrays.equals(myStack, ((StackKey)obj).myStack);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
     }
   }
 }
@@ -0,0 +1,96 @@
+// Copyright 2000-2022 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package com.intellij.rt.debugger.agent;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+class ConcurrentIdentityWeakHashMap<K, V> {
+  private final ReferenceQueue<K> referenceQueue = new ReferenceQueue<>();
+  private final ConcurrentMap<Key<K>, V> map = new ConcurrentHashMap<>();
+
+  @SuppressWarnings("UnusedReturnValue")
+  public V put(K key, V value) {
+    processQueue();
+    return map.put(new WeakKey<>(key, referenceQueue), value);
+  }
+
+  public V putIfAbsent(K key, V value) {
+    processQueue();
+    return map.putIfAbsent(new WeakKey<>(key, referenceQueue), value);
+  }
+
+  public V get(K key) {
+    return map.get(new HardKey<>(key));
+  }
+
+  Set<Map.Entry<Key<K>, V>> entrySet() {
+    return map.entrySet();
+  }
+
+  void processQueue() {
+    WeakKey<K> key;
+    //noinspection unchecked
+    while ((key = (WeakKey<K>) referenceQueue.poll()) != null) {
+      map.remove(key);
+    }
+  }
+
+  interface Key<K> {
+    K get();
+  }
+
+  private static boolean equalKeys(Key<?> x, Key<?> y) {
+    if (x == y) return true;
+    Object kx = x.get();
+    Object ky = y.get();
+    return kx != null && kx == ky;
+  }
+
+  // only for map queries
+  private static class HardKey<K> implements Key<K> {
+    private final K myKey;
+    private final int myHash;
+
+    HardKey(K key) {
+      myKey = key;
+      myHash = System.identityHashCode(key);
+    }
+
+    @Override
+    public K get() {
+      return myKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key<?> && equalKeys(this, (Key<?>) o);
+    }
+
+    public int hashCode() {
+      return myHash;
+    }
+  }
+
+  private static class WeakKey<K> extends WeakReference<K> implements Key<K> {
+    private final int myHash;
+
+    WeakKey(K key, ReferenceQueue<K> q) {
+      super(key, q);
+      myHash = System.identityHashCode(key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key<?> && equalKeys(this, (Key<?>) o);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+  }
+}
@@ -4,6 +4,7 @@ import org.jetbrains.capture.org.objectweb.asm.*;
 import org.jetbrains.capture.org.objectweb.asm.commons.LocalVariablesSorter;
 import org.jetbrains.capture.org.objectweb.asm.tree.*;
 import org.jetbrains.capture.org.objectweb.asm.tree.analysis.Analyzer;
+import org.jetbrains.capture.org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.jetbrains.capture.org.objectweb.asm.tree.analysis.BasicValue;
 import org.jetbrains.capture.org.objectweb.asm.tree.analysis.BasicVerifier;
 import org.jetbrains.capture.org.objectweb.asm.tree.analysis.Frame;
@@ -15,6 +16,11 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import static com.intellij.rt.debugger.agent.CaptureAgent.getInternalClsName;
 
@@ -54,21 +60,41 @@ interface ArgumentGetter {
 class InstrumentationBreakpointMappingInfo {
     final InstrumentationBreakpointInfo inputInfo;
     final List<ArgumentGetter> argumentLoadGenerators;
+    final List<Type> argumentTypes;
 
-    InstrumentationBreakpointMappingInfo(InstrumentationBreakpointInfo inputInfo, List<ArgumentGetter> argumentLoadGenerators) {
+    InstrumentationBreakpointMappingInfo(InstrumentationBreakpointInfo inputInfo, List<ArgumentGetter> argumentLoadGenerators, List<Type> argumentTypes) {
         this.inputInfo = inputInfo;
         this.argumentLoadGenerators = argumentLoadGenerators;
+        this.argumentTypes = argumentTypes;
     }
 }
 
 public class InstrumentationBreakpointTransformer {
     static final int BREAKPOINT_TRANSFORM_READER_FLAGS = ClassReader.EXPAND_FRAMES;
-    private static final Set<String> myClassesWithBreakpoints = new LinkedHashSet<>();
+    // It's checked on every class load, so the check must be cheap and not block on breakpoints being installed.
+    private static final Set<String> myClassesWithBreakpoints =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    private static final Map<String, ClassInstrumentationState> myExistedInstrumentationInfo = new HashMap<>();
+    // Results of a class are updated together under the lock of its state.
+    private static final ConcurrentMap<String, ClassInstrumentationState> myExistedInstrumentationInfo = new ConcurrentHashMap<>();
+
+    private static final int ANALYSIS_CACHE_SIZE = 256;
+
+    // Analysis of the recently instrumented methods by the class bytes hash and the method.
+    // Adding or removing a breakpoint retransforms the same class bytes, so only the methods not seen before are analyzed.
+    // Only the stack types at the line starts and the local variable ranges are kept, not the frames of every instruction.
+    private static final Map<String, MethodAnalysis> myAnalysisCache = new LinkedHashMap<String, MethodAnalysis>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MethodAnalysis> eldest) {
+            return size() > ANALYSIS_CACHE_SIZE;
+        }
+    };
 
     public static class ClassInstrumentationState {
         public volatile String[][] instrumentationInfoTable = new String[0][];
+        // The table is set by setInstrumentationStates or installBreakpoints, so it's not requested on the next transformation,
+        // later ones request it again, the breakpoints of the class may change since then
+        public volatile boolean infoTableProvided;
         public volatile int[] successfullyInstalled = new int[0];
         public volatile String failureReport;
         public volatile int[] failedInstrumentationIds = new int[0];
@@ -77,25 +103,212 @@ public class InstrumentationBreakpointTransformer {
 
     @SuppressWarnings("unused")
     public static ClassInstrumentationState getInstrumentationState(String className) {
-        synchronized (myExistedInstrumentationInfo) {
-            return myExistedInstrumentationInfo.get(className);
-        }
+        return myExistedInstrumentationInfo.get(className);
     }
 
     @SuppressWarnings("unused")
     public static void setInstrumentationState(String className, String[][] instrumentationInfoTable) {
+        setInstrumentationState(className, instrumentationInfoTable, false);
+    }
+
+    private static void setInstrumentationState(String className, String[][] instrumentationInfoTable, boolean provided) {
         ClassInstrumentationState state = new ClassInstrumentationState();
         state.instrumentationInfoTable = instrumentationInfoTable;
-        synchronized (myExistedInstrumentationInfo) {
-            myExistedInstrumentationInfo.put(className, state);
+        state.infoTableProvided = provided;
+        myExistedInstrumentationInfo.put(className, state);
+    }
+
+    /**
+     * This method is used from the Debugger Engine side to set the instrumentation info of many classes in one call.
+     * The classes are marked as having breakpoints, so they are instrumented when loaded or retransformed
+     * with these tables, without {@link #requestInstrumentedInfo}. Only the next transformation of a class uses its table.
+     */
+    @SuppressWarnings("unused")
+    public static void setInstrumentationStates(String[] classNames, String[][][] instrumentationInfoTables) {
+        if (classNames.length != instrumentationInfoTables.length) {
+            throw new IllegalArgumentException("Expected " + classNames.length + " info tables, got " + instrumentationInfoTables.length);
+        }
+        for (int i = 0; i < classNames.length; i++) {
+            setInstrumentationState(classNames[i], instrumentationInfoTables[i], true);
         }
+        addBreakpointClasses(classNames);
+    }
+
+    /**
+     * The outcome of {@link #installBreakpoints}, by instrumentation id.
+     */
+    public static class InstallationResult {
+        public int[] successfullyInstalled = new int[0];
+        public int[] failedInstrumentationIds = new int[0];
+        // Breakpoints in the classes which are not loaded yet, they are instrumented when the class is loaded
+        public int[] pendingInstrumentationIds = new int[0];
+        // A report for every failed class or malformed info row, prefixed with the class name
+        public String[] failureReports = new String[0];
+    }
+
+    /**
+     * This method is used from the Debugger Engine side to install the breakpoints of many classes in one call,
+     * e.g. when the breakpoints of a project are restored at the session start.
+     * <p>
+     * The info table has the same rows as the one returned by {@link #requestInstrumentedInfo}, for any number of classes,
+     * it replaces the info of these classes. Malformed rows are reported and skipped,
+     * all the loaded classes are retransformed at once.
+     */
+    @SuppressWarnings("unused")
+    public static InstallationResult installBreakpoints(String[][] infoTable) {
+        List<Integer> failedIds = new ArrayList<>();
+        List<Integer> successIds = new ArrayList<>();
+        List<Integer> pendingIds = new ArrayList<>();
+        List<String> failureReports = new ArrayList<>();
+
+        Map<String, List<String[]>> tables = new LinkedHashMap<>();
+        for (String[] row : infoTable) {
+            String error = validateInfoRow(row);
+            if (error != null) {
+                if (row.length > 3) {
+                    try {
+                        failedIds.add(extractIdFromFragmentClassName(row[3]));
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+                failureReports.add((row.length > 0 ? row[0] : "") + ": " + error);
+                continue;
+            }
+            List<String[]> rows = tables.get(row[0]);
+            if (rows == null) {
+                rows = new ArrayList<>();
+                tables.put(row[0], rows);
+            }
+            rows.add(row);
+        }
+
+        String[] classNames = tables.keySet().toArray(new String[0]);
+        String[][][] classTables = new String[classNames.length][][];
+        for (int i = 0; i < classNames.length; i++) {
+            classTables[i] = tables.get(classNames[i]).toArray(new String[0][]);
+        }
+        setInstrumentationStates(classNames, classTables);
+
+        Set<String> loadedClassNames = retransformLoadedClasses(tables.keySet(), failureReports);
+
+        for (int i = 0; i < classNames.length; i++) {
+            List<Integer> ids = new ArrayList<>();
+            for (String[] row : classTables[i]) {
+                ids.add(extractIdFromFragmentClassName(row[3]));
+            }
+            if (!loadedClassNames.contains(classNames[i])) {
+                pendingIds.addAll(ids);
+                continue;
+            }
+            ClassInstrumentationState state = getInstrumentationState(classNames[i]);
+            Set<Integer> installed = new HashSet<>();
+            synchronized (state) {
+                for (int id : state.successfullyInstalled) {
+                    installed.add(id);
+                }
+                if (state.failureReport != null) {
+                    failureReports.add(classNames[i] + ": " + state.failureReport);
+                }
+            }
+            for (Integer id : ids) {
+                (installed.contains(id) ? successIds : failedIds).add(id);
+            }
+        }
+
+        InstallationResult result = new InstallationResult();
+        result.successfullyInstalled = getIntArrayFromList(successIds);
+        result.failedInstrumentationIds = getIntArrayFromList(failedIds);
+        result.pendingInstrumentationIds = getIntArrayFromList(pendingIds);
+        result.failureReports = failureReports.toArray(new String[0]);
+        return result;
+    }
+
+    // Returns null if the row can be instrumented, the reason otherwise
+    private static String validateInfoRow(String[] row) {
+        if (row.length < 6) {
+            return "Malformed instrumentation info " + Arrays.toString(row);
+        }
+        try {
+            Integer.parseInt(row[2]);
+            extractIdFromFragmentClassName(row[3]);
+            int argumentsCount = Type.getArgumentTypes(row[5]).length;
+            if (argumentsCount != row.length - 6) {
+                return "Fragment " + row[3] + " signature " + row[5] + " does not match " + (row.length - 6) + " arguments";
+            }
+        } catch (RuntimeException e) {
+            return "Malformed instrumentation info " + Arrays.toString(row) + ": " + e;
+        }
+        return null;
     }
 
+    /**
+     * Retransforms the loaded classes with the given internal names in one call, class by class if it fails.
+     * Returns the names of the loaded classes.
+     */
+    private static Set<String> retransformLoadedClasses(Set<String> classNames, List<String> failureReports) {
+        Set<String> loadedClassNames = new HashSet<>();
+        Instrumentation instrumentation = myInstrumentation;
+        if (instrumentation == null || classNames.isEmpty()) {
+            return loadedClassNames;
+        }
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> aClass : instrumentation.getAllLoadedClasses()) {
+            String internalName = getInternalClsName(aClass);
+            if (classNames.contains(internalName) && instrumentation.isModifiableClass(aClass)) {
+                classes.add(aClass);
+                loadedClassNames.add(internalName);
+            }
+        }
+        if (classes.isEmpty()) {
+            return loadedClassNames;
+        }
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (Throwable e) {
+            for (Class<?> aClass : classes) {
+                try {
+                    instrumentation.retransformClasses(aClass);
+                } catch (Throwable classException) {
+                    failureReports.add(getInternalClsName(aClass) + ": " + classException);
+                }
+            }
+        }
+        return loadedClassNames;
+    }
+
+    private static volatile Instrumentation myInstrumentation;
+
+    static final String VERIFICATION_PROPERTY = "instrumentationBreakpointsVerification";
+
+    // Only the code generated for the breakpoints is checked, while it's generated
+    static final int VERIFY_REGIONS = 0;
+    // The instrumented methods are verified
+    static final int VERIFY_METHODS = 1;
+    // All the methods of an instrumented class are verified, it's for debugging
+    static final int VERIFY_ALL = 2;
+
+    private static volatile int myVerificationMode = VERIFY_METHODS;
+
     public static void init(Properties properties, Instrumentation instrumentation) {
+        myInstrumentation = instrumentation;
+        myVerificationMode = parseVerificationMode(properties.getProperty(VERIFICATION_PROPERTY));
         applyProperties(properties);
         instrumentation.addTransformer(new BreakpointInstrumentalist(), true);
     }
 
+    static int parseVerificationMode(String value) {
+        if ("regions".equals(value)) {
+            return VERIFY_REGIONS;
+        }
+        if ("full".equals(value)) {
+            return VERIFY_ALL;
+        }
+        if (value != null && !"methods".equals(value)) {
+            System.err.println("Debugger agent: unknown " + VERIFICATION_PROPERTY + " value " + value + ", the instrumented methods are verified");
+        }
+        return VERIFY_METHODS;
+    }
+
     private static void applyProperties(Properties properties) {
         for (Map.Entry<Object, Object> entry : properties.entrySet()) {
             addPoint((String)entry.getKey(), (String)entry.getValue());
@@ -112,7 +325,12 @@ public class InstrumentationBreakpointTransformer {
         myClassesWithBreakpoints.add(className);
     }
 
-    private static class BreakpointInstrumentalist implements ClassFileTransformer {
+    @SuppressWarnings("unused")
+    public static void addBreakpointClasses(String[] classNames) {
+        myClassesWithBreakpoints.addAll(Arrays.asList(classNames));
+    }
+
+    static class BreakpointInstrumentalist implements ClassFileTransformer {
         @Override
         public byte[] transform(final ClassLoader loader, final String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
             if (!myClassesWithBreakpoints.contains(className)) {
@@ -120,15 +338,25 @@ public class InstrumentationBreakpointTransformer {
             }
 
             final List<Integer> successIds = new ArrayList<>();
+            final Set<String> instrumentedMethods = new HashSet<>();
+            final int verificationMode = myVerificationMode;
 
             final byte[] resultBytecode;
             try {
-                String[][] infoTable = requestInstrumentedInfo(className);
-                if (infoTable.length == 0) {
-                    infoTable = getSavedInstrumentationInfoTable(className);
+                ClassInstrumentationState savedState = getInstrumentationState(className);
+                String[][] infoTable;
+                if (savedState != null && savedState.infoTableProvided) {
+                    infoTable = savedState.instrumentationInfoTable;
+                    savedState.infoTableProvided = false;
                 }
                 else {
-                    saveInstrumentationInfoTable(className, infoTable);
+                    infoTable = requestInstrumentedInfo(className);
+                    if (infoTable.length == 0) {
+                        infoTable = getSavedInstrumentationInfoTable(className);
+                    }
+                    else {
+                        saveInstrumentationInfoTable(className, infoTable);
+                    }
                 }
                 if (infoTable.length == 0) {
                     return null;
@@ -165,41 +393,41 @@ public class InstrumentationBreakpointTransformer {
                     return null;
                 }
 
-                final ClassNode classNode = new ClassNode();
-                new ClassReader(classfileBuffer).accept(classNode, 0);
-
                 ClassTransformer transformer = new ClassTransformer(
                         className, classfileBuffer, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, loader
                 );
 
+                final long classHash = getClassHash(classfileBuffer);
 
+                // The class is parsed once. Methods without breakpoints go straight to the writer, which copies them as is,
+                // so their frames are not recomputed. Methods with breakpoints are collected into a tree to be analyzed,
+                // then they are written through the instrumentation.
                 resultBytecode = transformer.accept(new ClassVisitor(Opcodes.API_VERSION, transformer.writer) {
                     @Override
-                    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-                        MethodVisitor superMethodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                    public MethodVisitor visitMethod(final int access, final String name, final String descriptor, String signature, String[] exceptions) {
+                        final MethodVisitor superMethodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
                         final Map<Integer, InstrumentationBreakpointInfo> lineNumbers = getLineNumbers(name, methods);
                         if (lineNumbers == null || lineNumbers.isEmpty()) {
                             return superMethodVisitor;
                         }
 
-                        MethodNode m = null;
-                        for (MethodNode method : classNode.methods) {
-                            if (method.name.equals(name) && method.desc.equals(descriptor)) {
-                                m = method;
+                        return new MethodNode(api, access, name, descriptor, signature, exceptions) {
+                            @Override
+                            public void visitEnd() {
+                                Map<Integer, InstrumentationBreakpointMappingInfo> argumentMapping = collectArgumentMapping(classHash, className, this, lineNumbers);
+                                if (argumentMapping.isEmpty()) {
+                                    accept(superMethodVisitor);
+                                    return;
+                                }
+                                instrumentedMethods.add(name + descriptor);
+                                accept(createInstrumentingVisitor(access, descriptor, superMethodVisitor, argumentMapping));
                             }
-                        }
-                        if (m == null) {
-                            return superMethodVisitor;
-                        }
-
-                        final Map<Integer, InstrumentationBreakpointMappingInfo> argumentMapping = collectArgumentMapping(classNode.name, m, lineNumbers);
-
-                        if (argumentMapping.isEmpty()) {
-                            return superMethodVisitor;
-                        }
+                        };
+                    }
 
+                    private MethodVisitor createInstrumentingVisitor(int access, String descriptor, MethodVisitor superMethodVisitor,
+                                                                     final Map<Integer, InstrumentationBreakpointMappingInfo> argumentMapping) {
                         return new LocalVariablesSorter(api, access, descriptor, superMethodVisitor) {
-
                             @Override
                             public void visitLineNumber(int line, Label start) {
                                 InstrumentationBreakpointMappingInfo instrumentationBreakpointInfo = argumentMapping.get(line);
@@ -224,19 +452,44 @@ public class InstrumentationBreakpointTransformer {
                                     Label endTry = new Label();
                                     Label catchBlock = new Label();
                                     Label endOfTry = new Label();
+                                    Label theEnd = new Label();
 
+                                    //                 if (!shouldCallFragment(id)) goto theEnd, only with a hit filter
                                     //                 spill the variables
                                     // startTry  :     try {
                                     //                     fragmentClassName.fragmentEntryMethodName(arguments)
                                     // catchBlock:     } catch (Throwable e) {
-                                    //                     reportIncorrectInstrumentation(e.toString(), id)
+                                    //                     reportIncorrectInstrumentationException(e, id)
                                     //                 }
                                     // endOfTry :
                                     //                 restore the variables
                                     // theEnd:
+                                    //
+                                    // The handler stays inline, so it is covered by the same user try blocks as the line.
+                                    // It cannot be shared by the breakpoints of the method: jumping back to different lines
+                                    // would merge their frames and lose the locals that are only defined at some of them.
 
                                     String theTransformerClassName = getInternalClsName(InstrumentationBreakpointTransformer.class);
 
+                                    if (instrumentationId >= Short.MAX_VALUE) {
+                                        throw new IllegalArgumentException("Instrumentation ID exceeds short range: " + instrumentationId);
+                                    }
+
+                                    if (verificationMode == VERIFY_REGIONS) {
+                                        checkInstrumentedRegion(argumentMapping);
+                                    }
+
+                                    boolean hasHitFilter = getHitFilter(instrumentationId) != null;
+                                    if (hasHitFilter) {
+                                        mv.visitIntInsn(Opcodes.SIPUSH, instrumentationId);
+                                        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                                                theTransformerClassName,
+                                                "shouldCallFragment",
+                                                "(I)Z",
+                                                false);
+                                        mv.visitJumpInsn(Opcodes.IFEQ, theEnd);
+                                    }
+
                                     int[] stackLocalIndexes = spillStack(stackTypes);
 
                                     mv.visitTryCatchBlock(startTry, endTry, catchBlock, "java/lang/Throwable");
@@ -256,23 +509,18 @@ public class InstrumentationBreakpointTransformer {
                                     mv.visitJumpInsn(Opcodes.GOTO, endOfTry);
 
                                     mv.visitLabel(catchBlock);
-                                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL,
-                                            "java/lang/Throwable",
-                                            "toString",
-                                            "()Ljava/lang/String;",
-                                            false);
-                                    if (instrumentationId >= Short.MAX_VALUE) {
-                                        throw new IllegalArgumentException("Instrumentation ID exceeds short range: " + instrumentationId);
-                                    }
                                     mv.visitIntInsn(Opcodes.SIPUSH, instrumentationId);
                                     mv.visitMethodInsn(Opcodes.INVOKESTATIC,
                                             theTransformerClassName,
-                                            "reportIncorrectInstrumentation",
-                                            "(Ljava/lang/String;I)V",
+                                            "reportIncorrectInstrumentationException",
+                                            "(Ljava/lang/Throwable;I)V",
                                             false);
 
                                     mv.visitLabel(endOfTry);
                                     restoreStack(stackTypes, stackLocalIndexes);
+                                    if (hasHitFilter) {
+                                        mv.visitLabel(theEnd);
+                                    }
                                 } catch (Throwable e) {
                                     throw new InstrumentationBpExceptionWrapper(e, instrumentationId);
                                 }
@@ -306,17 +554,8 @@ public class InstrumentationBreakpointTransformer {
                 return null;
             }
 
-            // Verify the result bytecode
             try {
-                ClassReader cr = new ClassReader(resultBytecode);
-                ClassNode cn = new ClassNode();
-                cr.accept(cn, 0);
-
-                for (MethodNode mn : cn.methods) {
-                    // use Basic verifier to not load any class
-                    Analyzer<BasicValue> a = new Analyzer<>(new BasicVerifier());
-                    a.analyze(cn.name, mn);
-                }
+                verifyResultBytecode(className, resultBytecode, instrumentedMethods, verificationMode);
             } catch (Throwable e) {
                 instrumentationFailed(className, e, getIntArrayFromList(successIds), resultBytecode);
                 return null;
@@ -331,6 +570,59 @@ public class InstrumentationBreakpointTransformer {
         }
     }
 
+    /**
+     * Verifies the result bytecode, only the methods to verify are read back, others are skipped by the reader.
+     * The regions mode relies on the checks done while the code is generated.
+     */
+    private static void verifyResultBytecode(String className, byte[] resultBytecode, final Set<String> instrumentedMethods, final int verificationMode)
+            throws AnalyzerException {
+        if (verificationMode == VERIFY_REGIONS) {
+            return;
+        }
+        final List<MethodNode> methodNodes = new ArrayList<>();
+        new ClassReader(resultBytecode).accept(new ClassVisitor(Opcodes.API_VERSION) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                if (verificationMode != VERIFY_ALL && !instrumentedMethods.contains(name + descriptor)) {
+                    return null;
+                }
+                MethodNode methodNode = new MethodNode(access, name, descriptor, signature, exceptions);
+                methodNodes.add(methodNode);
+                return methodNode;
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        for (MethodNode mn : methodNodes) {
+            // use Basic verifier to not load any class
+            Analyzer<BasicValue> a = new Analyzer<>(new BasicVerifier());
+            a.analyze(className, mn);
+        }
+    }
+
+    /**
+     * A local check of the code generated for a breakpoint, the same BasicVerifier does for it:
+     * the spilled stack is restored as is, so only the fragment call has to keep the stack height and types.
+     */
+    static void checkInstrumentedRegion(InstrumentationBreakpointMappingInfo argumentMapping) {
+        String methodSignature = argumentMapping.inputInfo.methodSignature;
+        if (Type.getReturnType(methodSignature).getSort() != Type.VOID) {
+            throw new IllegalArgumentException("Fragment entry method " + argumentMapping.inputInfo.fragmentEntryMethodName + methodSignature + " should return void");
+        }
+        Type[] parameterTypes = Type.getArgumentTypes(methodSignature);
+        if (parameterTypes.length != argumentMapping.argumentTypes.size()) {
+            throw new IllegalArgumentException("Fragment entry method " + argumentMapping.inputInfo.fragmentEntryMethodName + methodSignature +
+                                               " expects " + parameterTypes.length + " arguments, got " + argumentMapping.argumentTypes.size());
+        }
+        for (int i = 0; i < parameterTypes.length; i++) {
+            Type argumentType = argumentMapping.argumentTypes.get(i);
+            // the load and the parameter should be of the same kind, a reference or the same primitive
+            if (argumentType.getOpcode(Opcodes.ILOAD) != parameterTypes[i].getOpcode(Opcodes.ILOAD)) {
+                throw new IllegalArgumentException("Argument " + argumentMapping.inputInfo.argumentNames.get(i) + " of type " + argumentType +
+                                                   " cannot be passed as " + parameterTypes[i]);
+            }
+        }
+    }
+
     private static String[][] getSavedInstrumentationInfoTable(String className) {
         ClassInstrumentationState instrumentationState = getInstrumentationState(className);
         if (instrumentationState == null || instrumentationState.instrumentationInfoTable == null) {
@@ -340,14 +632,12 @@ public class InstrumentationBreakpointTransformer {
     }
 
     private static void saveInstrumentationInfoTable(String className, String[][] instrumentationInfoTable) {
-        synchronized (myExistedInstrumentationInfo) {
-            getOrCreateInstrumentationState(className).instrumentationInfoTable = instrumentationInfoTable;
-        }
+        getOrCreateInstrumentationState(className).instrumentationInfoTable = instrumentationInfoTable;
     }
 
     private static void recordSuccessfullyInstrumented(String className, int[] instrumentationIds) {
-        synchronized (myExistedInstrumentationInfo) {
-            ClassInstrumentationState state = getOrCreateInstrumentationState(className);
+        ClassInstrumentationState state = getOrCreateInstrumentationState(className);
+        synchronized (state) {
             state.successfullyInstalled = instrumentationIds;
             state.failureReport = null;
             state.failedInstrumentationIds = new int[0];
@@ -356,8 +646,8 @@ public class InstrumentationBreakpointTransformer {
     }
 
     private static void recordInstrumentationFailed(String className, String report, int[] instrumentationIds, byte[] resultBytecode) {
-        synchronized (myExistedInstrumentationInfo) {
-            ClassInstrumentationState state = getOrCreateInstrumentationState(className);
+        ClassInstrumentationState state = getOrCreateInstrumentationState(className);
+        synchronized (state) {
             state.successfullyInstalled = new int[0];
             state.failureReport = report;
             state.failedInstrumentationIds = instrumentationIds;
@@ -366,8 +656,8 @@ public class InstrumentationBreakpointTransformer {
     }
 
     private static void resetInstrumentationResult(String className) {
-        synchronized (myExistedInstrumentationInfo) {
-            ClassInstrumentationState state = getOrCreateInstrumentationState(className);
+        ClassInstrumentationState state = getOrCreateInstrumentationState(className);
+        synchronized (state) {
             state.successfullyInstalled = new int[0];
             state.failureReport = null;
             state.failedInstrumentationIds = new int[0];
@@ -379,14 +669,17 @@ public class InstrumentationBreakpointTransformer {
         ClassInstrumentationState state = myExistedInstrumentationInfo.get(className);
         if (state == null) {
             state = new ClassInstrumentationState();
-            myExistedInstrumentationInfo.put(className, state);
+            ClassInstrumentationState previous = myExistedInstrumentationInfo.putIfAbsent(className, state);
+            if (previous != null) {
+                state = previous;
+            }
         }
         return state;
     }
 
-    private static Map<Integer, InstrumentationBreakpointMappingInfo> collectArgumentMapping(String owner, MethodNode method, Map<Integer, InstrumentationBreakpointInfo> lineNumbers) {
+    private static Map<Integer, InstrumentationBreakpointMappingInfo> collectArgumentMapping(long classHash, String owner, MethodNode method, Map<Integer, InstrumentationBreakpointInfo> lineNumbers) {
         final Map<Integer, InstrumentationBreakpointMappingInfo> remappingInfo = new HashMap<>();
-        Frame<BasicValue>[] frames = analyzeMethodFrames(owner, method);
+        MethodAnalysis analysis = getMethodAnalysis(classHash, owner, method);
 
         Map<Integer, Integer> visitedLineNumbers = new HashMap<>();
 
@@ -424,42 +717,37 @@ public class InstrumentationBreakpointTransformer {
                     remappingInfo.remove(lineNumber);
                 }
                 else {
-                    Type[] stackTypes = collectStackTypes(method, frames, instructionIndex, instrumentationBreakpointInfo);
+                    Type[] stackTypes = analysis.getStackTypes(instructionIndex);
                     if (stackTypes == null) {
+                        impossibleToInstrument(analysis.getStackError(instructionIndex), instrumentationBreakpointInfo.instrumentationId);
                         remappingInfo.remove(lineNumber);
                         continue;
                     }
                     instrumentationBreakpointInfo.stackTypes = stackTypes;
 
                     List<ArgumentGetter> argumentLoadGenerators = new ArrayList<>();
+                    List<Type> argumentTypes = new ArrayList<>();
                     for (String argumentName : instrumentationBreakpointInfo.argumentNames) {
-                        boolean isFound = false;
-                        for (LocalVariableNode localVariableNode : method.localVariables) {
-                            if (localVariableNode.name.equals(argumentName) &&
-                                    method.instructions.indexOf(localVariableNode.start) <= instructionIndex &&
-                                    instructionIndex < method.instructions.indexOf(localVariableNode.end)
-                            ) {
-                                isFound = true;
-
-                                final Type type = Type.getType(localVariableNode.desc);
-                                final int localVariableIndex = localVariableNode.index;
-                                argumentLoadGenerators.add(new ArgumentGetter() {
-                                    @Override
-                                    public void generateArgumentLoad(MethodVisitor mv) {
-                                        mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), localVariableIndex);
-                                    }
-                                });
-                                break;
-                            }
+                        LocalVariableRange localVariable = analysis.findLocalVariable(argumentName, instructionIndex);
+                        if (localVariable != null) {
+                            final Type type = localVariable.type;
+                            final int localVariableIndex = localVariable.index;
+                            argumentTypes.add(type);
+                            argumentLoadGenerators.add(new ArgumentGetter() {
+                                @Override
+                                public void generateArgumentLoad(MethodVisitor mv) {
+                                    mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), localVariableIndex);
+                                }
+                            });
                         }
-                        if (!isFound) {
+                        else {
                             impossibleToInstrument("Argument " + argumentName  + " not found", instrumentationBreakpointInfo.instrumentationId);
                             break;
                         }
                     }
 
                     if (argumentLoadGenerators.size() == instrumentationBreakpointInfo.argumentNames.size()) {
-                        remappingInfo.put(lineNumber, new InstrumentationBreakpointMappingInfo(instrumentationBreakpointInfo, argumentLoadGenerators));
+                        remappingInfo.put(lineNumber, new InstrumentationBreakpointMappingInfo(instrumentationBreakpointInfo, argumentLoadGenerators, argumentTypes));
                     }
                 }
             } catch (Throwable e) {
@@ -470,6 +758,116 @@ public class InstrumentationBreakpointTransformer {
         return remappingInfo;
     }
 
+    private static long getClassHash(byte[] classfileBuffer) {
+        CRC32 crc = new CRC32();
+        crc.update(classfileBuffer, 0, classfileBuffer.length);
+        // the length makes collisions of the 32-bit checksum even less likely
+        return ((long)classfileBuffer.length << 32) | crc.getValue();
+    }
+
+    private static MethodAnalysis getMethodAnalysis(long classHash, String owner, MethodNode method) {
+        String key = Long.toHexString(classHash) + ":" + owner + "." + method.name + method.desc;
+        synchronized (myAnalysisCache) {
+            MethodAnalysis analysis = myAnalysisCache.get(key);
+            if (analysis != null) {
+                return analysis;
+            }
+        }
+        MethodAnalysis analysis = new MethodAnalysis(analyzeMethodFrames(owner, method), method);
+        synchronized (myAnalysisCache) {
+            myAnalysisCache.put(key, analysis);
+        }
+        return analysis;
+    }
+
+    /**
+     * Operand stack types at the line starts and local variable ranges of a method, they only depend on the method bytecode.
+     * Instruction indexes are stable for the same class bytes parsed with the same options.
+     */
+    private static class MethodAnalysis {
+        private static final LocalVariableRange[] NO_RANGES = new LocalVariableRange[0];
+        private static final Type[] NO_STACK = new Type[0];
+
+        // Stack types to spill by the instruction index of the line number, the stack is empty at most line starts
+        private final Map<Integer, Type[]> myStackTypes = new HashMap<>();
+        // Why the stack cannot be spilled by the instruction index of the line number
+        private final Map<Integer, String> myStackErrors = new HashMap<>();
+        // Instruction ranges of the local variables by name, built once and shared by all the breakpoints in the method
+        private final Map<String, LocalVariableRange[]> myLocalVariables = new HashMap<>();
+
+        MethodAnalysis(Frame<BasicValue>[] frames, MethodNode method) {
+            for (int instructionIndex = 0; instructionIndex < frames.length; instructionIndex++) {
+                AbstractInsnNode instruction = method.instructions.get(instructionIndex);
+                if (instruction instanceof LineNumberNode) {
+                    try {
+                        Type[] stackTypes = collectStackTypes(method, frames, instructionIndex, ((LineNumberNode)instruction).line);
+                        myStackTypes.put(instructionIndex, stackTypes.length == 0 ? NO_STACK : stackTypes);
+                    } catch (IllegalArgumentException e) {
+                        myStackErrors.put(instructionIndex, e.getMessage());
+                    }
+                }
+            }
+            if (method.localVariables == null) {
+                return;
+            }
+            // indexOf builds the instructions index once for all the labels
+            for (LocalVariableNode localVariableNode : method.localVariables) {
+                LocalVariableRange range = new LocalVariableRange(
+                        Type.getType(localVariableNode.desc),
+                        localVariableNode.index,
+                        method.instructions.indexOf(localVariableNode.start),
+                        method.instructions.indexOf(localVariableNode.end));
+                LocalVariableRange[] ranges = myLocalVariables.get(localVariableNode.name);
+                if (ranges == null) {
+                    ranges = NO_RANGES;
+                }
+                ranges = Arrays.copyOf(ranges, ranges.length + 1);
+                ranges[ranges.length - 1] = range;
+                myLocalVariables.put(localVariableNode.name, ranges);
+            }
+        }
+
+        /**
+         * Returns the stack types at the line number instruction, or null if the stack cannot be spilled there.
+         */
+        Type[] getStackTypes(int instructionIndex) {
+            return myStackTypes.get(instructionIndex);
+        }
+
+        String getStackError(int instructionIndex) {
+            return myStackErrors.get(instructionIndex);
+        }
+
+        /**
+         * Returns the first local variable in the table order with the name, visible at the instruction.
+         */
+        LocalVariableRange findLocalVariable(String name, int instructionIndex) {
+            LocalVariableRange[] ranges = myLocalVariables.get(name);
+            if (ranges != null) {
+                for (LocalVariableRange range : ranges) {
+                    if (range.start <= instructionIndex && instructionIndex < range.end) {
+                        return range;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class LocalVariableRange {
+        final Type type;
+        final int index;
+        final int start;
+        final int end;
+
+        LocalVariableRange(Type type, int index, int start, int end) {
+            this.type = type;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
     private static Frame<BasicValue>[] analyzeMethodFrames(String owner, MethodNode method) {
         Analyzer<BasicValue> analyzer = new Analyzer<>(new BasicVerifier());
         try {
@@ -479,21 +877,15 @@ public class InstrumentationBreakpointTransformer {
         }
     }
 
-    private static Type[] collectStackTypes(MethodNode method, Frame<BasicValue>[] frames, int instructionIndex, InstrumentationBreakpointInfo instrumentationBreakpointInfo) {
+    private static Type[] collectStackTypes(MethodNode method, Frame<BasicValue>[] frames, int instructionIndex, int lineNumber) {
         Frame<BasicValue> frame = getFrameForInstrumentation(method, frames, instructionIndex);
         if (frame == null) {
-            impossibleToInstrument("Cannot determine operand stack at line " + instrumentationBreakpointInfo.lineNumber, instrumentationBreakpointInfo.instrumentationId);
-            return null;
+            throw new IllegalArgumentException("Cannot determine operand stack at line " + lineNumber);
         }
 
         Type[] stackTypes = new Type[frame.getStackSize()];
         for (int i = 0; i < stackTypes.length; i++) {
-            try {
-                stackTypes[i] = getSpillType(frame.getStack(i));
-            } catch (IllegalArgumentException e) {
-                impossibleToInstrument(e.getMessage(), instrumentationBreakpointInfo.instrumentationId);
-                return null;
-            }
+            stackTypes[i] = getSpillType(frame.getStack(i));
         }
         return stackTypes;
     }
@@ -559,19 +951,13 @@ public class InstrumentationBreakpointTransformer {
         return methods.get(methodName);
     }
 
-    private static final ThreadLocal<Integer> myThreadLocal = new ThreadLocal<>();
-
     /**
      * This method is used from the Debugger Engine side to check
      * that the triggered breakpoint is not met under some evaluation
      */
     @SuppressWarnings("unused")
     public static boolean isUnderBreakpointCheck() {
-        Integer previous = myThreadLocal.get();
-        if (previous == null) {
-            previous = 0;
-        }
-        return previous > 0;
+        return CaptureStorage.CURRENT_CONTEXT.get().breakpointCheckDepth > 0;
     }
 
     /**
@@ -594,14 +980,12 @@ public class InstrumentationBreakpointTransformer {
      * @return true if the thread is in progress of condition/logging evaluation, so other breakpoints should be skipped.
      */
     public static boolean enterBreakpointCheck() {
-        Integer previous = myThreadLocal.get();
-        if (previous == null) {
-            previous = 0;
-        }
-        if (previous > 0) {
+        // the depth is shared with the capture context, so a hit is a single thread local lookup without boxing
+        CaptureStorage.ThreadLocalContext context = CaptureStorage.CURRENT_CONTEXT.get();
+        if (context.breakpointCheckDepth > 0) {
             return true;
         }
-        myThreadLocal.set(previous + 1);
+        context.breakpointCheckDepth++;
 
         return false;
     }
@@ -609,11 +993,85 @@ public class InstrumentationBreakpointTransformer {
     /** This method is used from instrumented code */
     @SuppressWarnings("unused")
     public static void checkIsDone() {
-        Integer previous = myThreadLocal.get();
-        if (previous == null) {
-            previous = 0;
+        CaptureStorage.CURRENT_CONTEXT.get().breakpointCheckDepth--;
+    }
+
+    private static volatile HitFilter[] myHitFilters = new HitFilter[0];
+
+    /**
+     * This method is used from the Debugger Engine side to limit how often the fragment of a breakpoint is called.
+     * The check is generated only for breakpoints having a filter when the class is instrumented,
+     * later changes of the filter parameters are applied without re-instrumentation.
+     *
+     * @param passCount      number of the first hits to skip
+     * @param hitCount       call the fragment on every hitCount-th hit after the skipped ones, 0 or 1 to call on every hit
+     * @param ratePerSecond  call the fragment at most this number of times per second, 0 for no limit
+     */
+    @SuppressWarnings("unused")
+    public static synchronized void setHitFilter(int instrumentationId, int passCount, int hitCount, int ratePerSecond) {
+        HitFilter filter = passCount > 0 || hitCount > 1 || ratePerSecond > 0 ? new HitFilter(passCount, hitCount, ratePerSecond) : null;
+        HitFilter[] filters = myHitFilters;
+        if (instrumentationId >= filters.length) {
+            if (filter == null) {
+                return;
+            }
+            filters = Arrays.copyOf(filters, Math.max(instrumentationId + 1, filters.length * 2));
+        }
+        else {
+            filters = filters.clone();
+        }
+        filters[instrumentationId] = filter;
+        myHitFilters = filters;
+    }
+
+    private static HitFilter getHitFilter(int instrumentationId) {
+        HitFilter[] filters = myHitFilters;
+        return instrumentationId < filters.length ? filters[instrumentationId] : null;
+    }
+
+    /** This method is used from instrumented code */
+    @SuppressWarnings("unused")
+    public static boolean shouldCallFragment(int instrumentationId) {
+        HitFilter filter = getHitFilter(instrumentationId);
+        return filter == null || filter.shouldHit();
+    }
+
+    private static class HitFilter {
+        private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+        private final long myPassCount;
+        private final long myHitCount;
+        private final long myIntervalNs;
+        private final AtomicLong myHits = new AtomicLong();
+        // Token bucket of one second of hits, kept as the time when the bucket is full again
+        private final AtomicLong myBucketFullNs = new AtomicLong(System.nanoTime());
+
+        HitFilter(int passCount, int hitCount, int ratePerSecond) {
+            myPassCount = Math.max(passCount, 0);
+            myHitCount = Math.max(hitCount, 1);
+            myIntervalNs = ratePerSecond > 0 ? SECOND_NS / ratePerSecond : 0;
+        }
+
+        boolean shouldHit() {
+            long hit = myHits.incrementAndGet();
+            if (hit <= myPassCount || (hit - myPassCount) % myHitCount != 0) {
+                return false;
+            }
+            if (myIntervalNs == 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            while (true) {
+                long bucketFull = myBucketFullNs.get();
+                long newBucketFull = Math.max(bucketFull, now) + myIntervalNs;
+                if (newBucketFull - now > SECOND_NS) {
+                    return false;
+                }
+                if (myBucketFullNs.compareAndSet(bucketFull, newBucketFull)) {
+                    return true;
+                }
+            }
         }
-        myThreadLocal.set(previous - 1);
     }
 
     /**
@@ -674,6 +1132,12 @@ public class InstrumentationBreakpointTransformer {
         // The report will be on the IDE side by a special breakpoint
     }
 
+    /** This method is used from instrumented code, it keeps the exception handlers of the breakpoints small */
+    @SuppressWarnings("unused")
+    public static void reportIncorrectInstrumentationException(Throwable exception, int instrumentationId) {
+        reportIncorrectInstrumentation(exception.toString(), instrumentationId);
+    }
+
     @SuppressWarnings("unused")
     public static void impossibleToInstrument(String message, int instrumentationId) {
         // The report will be on the IDE side by a special breakpoint
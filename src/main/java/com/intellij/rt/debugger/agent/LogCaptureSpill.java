@@ -0,0 +1,173 @@
+package com.intellij.rt.debugger.agent;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Keeps payloads of batched log capture events off the heap.
+ * <p>
+ * Payloads are appended to memory-mapped segments, at most {@link #MAX_SEGMENTS} of them.
+ * A segment is reused once it's full and all of its events are flushed to the debugger,
+ * if all segments wait for the flush, payloads stay on the heap.
+ * Segments are mapped once and never unmapped, their files are deleted right after mapping where the OS allows it,
+ * so only the temp directory is left for the cleanup on exit.
+ */
+class LogCaptureSpill {
+    static final int MAX_SEGMENTS = 4;
+
+    private final File myDirectory;
+    private final int mySegmentSize;
+    private final List<Segment> mySegments = new ArrayList<>(); // guarded by this
+    private Segment myCurrentSegment; // guarded by this
+
+    private LogCaptureSpill(File directory, int segmentSize) {
+        myDirectory = directory;
+        mySegmentSize = segmentSize;
+    }
+
+    static LogCaptureSpill create(int segmentSize) throws IOException {
+        File directory = Files.createTempDirectory("debugger-agent-log-capture").toFile();
+        directory.deleteOnExit();
+        return new LogCaptureSpill(directory, segmentSize);
+    }
+
+    /**
+     * Returns the event with the payload written to the current segment,
+     * or null if the payload doesn't fit into a segment or there is no free segment.
+     */
+    synchronized LogCaptureStorage.Event spill(long id, byte type, byte[] payload) throws IOException {
+        if (payload.length > mySegmentSize) return null;
+        if (myCurrentSegment == null || myCurrentSegment.remaining() < payload.length) {
+            if (myCurrentSegment != null) {
+                myCurrentSegment.retire();
+            }
+            myCurrentSegment = nextSegment();
+            if (myCurrentSegment == null) return null;
+        }
+        return myCurrentSegment.append(id, type, payload);
+    }
+
+    private Segment nextSegment() throws IOException {
+        for (Segment segment : mySegments) {
+            if (segment.reuse()) {
+                return segment;
+            }
+        }
+        if (mySegments.size() < MAX_SEGMENTS) {
+            Segment segment = new Segment(File.createTempFile("segment", ".bin", myDirectory), mySegmentSize);
+            mySegments.add(segment);
+            return segment;
+        }
+        return null;
+    }
+
+    private static class Segment {
+        private final MappedByteBuffer myBuffer;
+        private int myPosition; // guarded by the LogCaptureSpill
+        private int myLiveEvents; // guarded by this
+        private boolean myRetired; // guarded by this
+
+        private Segment(File file, int size) throws IOException {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                // The mapping stays valid after the file is closed.
+                myBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                // Fails for mapped files on Windows, the file is removed on exit then.
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+
+        private int remaining() {
+            return myBuffer.capacity() - myPosition;
+        }
+
+        private LogCaptureStorage.Event append(long id, byte type, byte[] payload) {
+            ByteBuffer buffer = myBuffer.duplicate();
+            buffer.position(myPosition);
+            buffer.put(payload);
+            SpilledEvent event = new SpilledEvent(id, type, this, myPosition, payload.length);
+            myPosition += payload.length;
+            synchronized (this) {
+                myLiveEvents++;
+            }
+            return event;
+        }
+
+        private void read(int offset, byte[] bytes) {
+            ByteBuffer buffer = myBuffer.duplicate();
+            buffer.position(offset);
+            buffer.get(bytes);
+        }
+
+        private synchronized void retire() {
+            myRetired = true;
+        }
+
+        private synchronized void release() {
+            myLiveEvents--;
+        }
+
+        /**
+         * Makes the segment current again if it's retired and all of its events are flushed, called under the LogCaptureSpill lock.
+         */
+        private synchronized boolean reuse() {
+            if (!myRetired || myLiveEvents > 0) {
+                return false;
+            }
+            myRetired = false;
+            myPosition = 0;
+            return true;
+        }
+    }
+
+    private static class SpilledEvent extends LogCaptureStorage.Event {
+        private static final AtomicIntegerFieldUpdater<SpilledEvent> RELEASED =
+                AtomicIntegerFieldUpdater.newUpdater(SpilledEvent.class, "myReleased");
+
+        private final Segment mySegment;
+        private final int myOffset;
+        private final int mySize;
+        @SuppressWarnings("unused")
+        private volatile int myReleased;
+
+        private SpilledEvent(long id, byte type, Segment segment, int offset, int size) {
+            super(id, type);
+            mySegment = segment;
+            myOffset = offset;
+            mySize = size;
+        }
+
+        @Override
+        int payloadSize() {
+            return mySize;
+        }
+
+        // A concurrent flush can still write a released event after its segment is reused,
+        // the debugger ignores such an event as it has already received its ID.
+        @Override
+        void writePayload(DataOutputStream dos) throws IOException {
+            byte[] bytes = new byte[mySize];
+            mySegment.read(myOffset, bytes);
+            dos.write(bytes);
+        }
+
+        @Override
+        void release() {
+            // The same event could be flushed concurrently, see LogCaptureStorage.EVENTS.
+            if (RELEASED.compareAndSet(this, 0, 1)) {
+                mySegment.release();
+            }
+        }
+    }
+}
@@ -6,9 +6,13 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 public class LogCaptureStorage {
@@ -23,13 +27,28 @@ public class LogCaptureStorage {
         }
     };
 
+    // The logical log record written by the current thread, see LogCaptureTransformer.LOG_RECORD_METHODS.
+    private final static ThreadLocal<LogRecordScope> LOG_RECORD_SCOPE = new ThreadLocal<LogRecordScope>() {
+        @Override
+        protected LogRecordScope initialValue() {
+            return new LogRecordScope();
+        }
+    };
+
     static final String BATCHING_ENABLED_PROPERTY = "logCaptureBatchingEnabled";
     static final String BATCHING_FLUSH_PERIOD_PROPERTY = "logCaptureBatchingFlushPeriod";
     static final String BATCHING_MAX_EVENTS_PROPERTY = "logCaptureBatchingMaxEvents";
+    static final String COALESCING_WINDOW_PROPERTY = "logCaptureCoalescingWindow";
+    static final String SPILL_ENABLED_PROPERTY = "logCaptureSpillEnabled";
+    static final String SPILL_SEGMENT_SIZE_PROPERTY = "logCaptureSpillSegmentSize";
 
     private static boolean BATCHING_ENABLED;
     private static int MAX_BATCHED_EVENTS_COUNT;
     private static boolean STDOUT_CAPTURE_ENABLED;
+    // Writes not ending with a line separator wait for the rest of the line during this time, 0 (default) disables it.
+    private static long COALESCING_WINDOW_NS;
+    // Not null if batched event payloads are kept in memory-mapped files instead of the heap.
+    private static volatile LogCaptureSpill SPILL;
 
     // It's used by the debugger.
     static final AtomicLong EVENT_COUNTER = new AtomicLong();
@@ -44,6 +63,27 @@ public class LogCaptureStorage {
     static final AtomicLong LAST_FLUSHED_EVENT_ID = new AtomicLong(-1);
     static final AtomicLong LAST_LOGGING_BREAKPOINT_EVENT_ID = new AtomicLong(-1);
 
+    // The line fragments written by the current thread to stdout and stderr and not yet captured as events.
+    // A fragment is taken out of the slot by the owner thread for modification, or by the flusher once it's expired.
+    private final static ThreadLocal<AtomicReference<PendingWrite>> PENDING_OUT_WRITE = createPendingWriteSlot();
+    private final static ThreadLocal<AtomicReference<PendingWrite>> PENDING_ERR_WRITE = createPendingWriteSlot();
+
+    // Slots of PENDING_OUT_WRITE and PENDING_ERR_WRITE which may contain a fragment.
+    private static final Set<AtomicReference<PendingWrite>> PENDING_WRITES =
+            Collections.newSetFromMap(new ConcurrentHashMap<AtomicReference<PendingWrite>, Boolean>());
+
+    // Event ids taken by the fragments not captured yet, the events following them are not flushed before them.
+    private static final ConcurrentSkipListSet<Long> PENDING_WRITE_IDS = new ConcurrentSkipListSet<>();
+
+    private static final Comparator<Event> EVENTS_BY_ID = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            return Long.compare(e1.id, e2.id);
+        }
+    };
+
+    private static final int MAX_COALESCED_SIZE = 8 * 1024;
+
     static class Event {
         public static final byte STD_OUTPUT_TYPE = 0;
         public static final byte LOGGING_BREAKPOINT_TYPE = 1;
@@ -57,6 +97,47 @@ public class LogCaptureStorage {
             this.type = type;
             this.payload = payload;
         }
+
+        // The payload is kept elsewhere, see LogCaptureSpill.
+        protected Event(long id, byte type) {
+            this(id, type, null);
+        }
+
+        int payloadSize() {
+            return payload.length;
+        }
+
+        void writePayload(DataOutputStream dos) throws IOException {
+            dos.write(payload);
+        }
+
+        // Called once the event is flushed to the debugger.
+        void release() {
+        }
+    }
+
+    private static class PendingWrite {
+        // The id is taken by the first write, so the line keeps its place among the events of other threads and fds.
+        private final long myId;
+        private final byte[] myEncodedStacks;
+        private final long myStartNanos;
+        private final ByteArrayOutputStream myBytes = new ByteArrayOutputStream();
+
+        private PendingWrite(long id, byte[] encodedStacks, long startNanos) {
+            myId = id;
+            myEncodedStacks = encodedStacks;
+            myStartNanos = startNanos;
+        }
+
+        private boolean isExpired(long nanos) {
+            return nanos - myStartNanos >= COALESCING_WINDOW_NS;
+        }
+    }
+
+    private static class LogRecordScope {
+        int depth;
+        // Stacks encoded for the first write of the record, the following writes of the same record reuse them.
+        byte[] encodedStacks;
     }
 
     private static final FileDescriptor FD_OUT = FileDescriptor.out;
@@ -64,8 +145,43 @@ public class LogCaptureStorage {
 
     private static final int MAX_STACK_DEPTH = 100; // It should be enough, we usually need only a few first frames.
 
+    // Frames between the call site and the stream write: the JDK streams and the logging frameworks.
+    private static final String[] LOGGING_FRAME_PREFIXES = {
+            "java.", "javax.", "jdk.", "sun.", "com.sun.",
+            "org.slf4j.", "ch.qos.logback.", "org.apache.logging.", "org.apache.log4j.", "org.apache.commons.logging.",
+            "org.jboss.logging.",
+    };
+    private static final Object CALL_SITE_FINDER = StackWalkerHelper.createFrameFinder(LOGGING_FRAME_PREFIXES);
+    // It also bounds the time a stack could be attributed to another call with the same call site, see CallSite.
+    private static final long STACK_CACHE_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int STACK_CACHE_SIZE = 16;
+
+    // Recently encoded stacks of the current thread by call site.
+    private final static ThreadLocal<Map<CallSite, EncodedStack>> STACK_CACHE = new ThreadLocal<Map<CallSite, EncodedStack>>() {
+        @Override
+        protected Map<CallSite, EncodedStack> initialValue() {
+            return new LinkedHashMap<CallSite, EncodedStack>(STACK_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CallSite, EncodedStack> eldest) {
+                    return size() > STACK_CACHE_SIZE;
+                }
+            };
+        }
+    };
+
+    private static final EncodedStack THROTTLED_STACK;
+
+    static {
+        try {
+            THROTTLED_STACK = encodeStack(Collections.singletonList(CaptureStorage.THROTTLED_STACK_ELEMENT), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
 
     private static boolean batchingSchedulerStarted;
+    private static volatile BatchFlusher FLUSHER;
     static ArrayList<String> outputWrittenDumpForTests = null;
 
     public static boolean init(Properties properties, boolean logCaptureEnabled) {
@@ -73,6 +189,9 @@ public class LogCaptureStorage {
         STDOUT_CAPTURE_ENABLED = logCaptureEnabled;
         BATCHING_ENABLED = Boolean.parseBoolean(properties.getProperty(BATCHING_ENABLED_PROPERTY, "true"));
         MAX_BATCHED_EVENTS_COUNT = Integer.parseInt(properties.getProperty(BATCHING_MAX_EVENTS_PROPERTY, "100"));
+        COALESCING_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(properties.getProperty(COALESCING_WINDOW_PROPERTY, "0")));
+        initSpill(properties);
         if (BATCHING_ENABLED && !batchingSchedulerStarted) {
             batchingSchedulerStarted = true;
 
@@ -92,8 +211,12 @@ public class LogCaptureStorage {
 
             long flushPeriod = Long.parseLong(
                     properties.getProperty(BATCHING_FLUSH_PERIOD_PROPERTY, "100"));
-            DebuggerAgent.SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(
-                    flushAction, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+            BatchFlusher flusher = new BatchFlusher(TimeUnit.MILLISECONDS.toNanos(flushPeriod));
+            Thread flusherThread = new Thread(flusher, "IntelliJ Debugger Log Flush Thread");
+            flusherThread.setDaemon(true);
+            flusher.myThread = flusherThread;
+            FLUSHER = flusher;
+            flusherThread.start();
 
             Runtime.getRuntime().addShutdownHook(
                     new Thread(flushAction, "IntelliJ Debugger Shutdown Log Flush Thread"));
@@ -101,6 +224,26 @@ public class LogCaptureStorage {
         return true;
     }
 
+    private static void initSpill(Properties properties) {
+        if (!BATCHING_ENABLED || !Boolean.parseBoolean(properties.getProperty(SPILL_ENABLED_PROPERTY, "false"))) {
+            SPILL = null;
+            return;
+        }
+        if (SPILL != null) return;
+        int segmentSize = Integer.parseInt(properties.getProperty(SPILL_SEGMENT_SIZE_PROPERTY, String.valueOf(4 * 1024 * 1024)));
+        try {
+            SPILL = LogCaptureSpill.create(segmentSize);
+        } catch (IOException e) {
+            handleSpillException(e);
+        }
+    }
+
+    private static void handleSpillException(Throwable e) {
+        SPILL = null;
+        System.err.println("Debugger agent, log capture: cannot spill events to disk, keeping them in memory");
+        e.printStackTrace(System.err);
+    }
+
     private static long createNextEventId(int eventType) {
         if (!BATCHING_ENABLED) return -1;
         long id = EVENT_COUNTER.getAndIncrement();
@@ -127,13 +270,13 @@ public class LogCaptureStorage {
             }
             if (!STDOUT_CAPTURE_ENABLED) return;
 
-            long id = createNextEventId(Event.STD_OUTPUT_TYPE);
-            ByteArrayOutputStream bas = new ByteArrayOutputStream(); // no need to close it
-            try (DataOutputStream dos = new DataOutputStream(bas)) {
-                encodeMessageAndCurrentStacks(dos, bytes, off, len);
+            // Pending fragments are drained by the flusher, so there is nothing to coalesce without batching.
+            if (BATCHING_ENABLED && COALESCING_WINDOW_NS > 0) {
+                captureCoalesced(fd, bytes, off, len);
+                return;
             }
-            byte[] payload = bas.toByteArray();
-            captureEvent(new Event(id, Event.STD_OUTPUT_TYPE, payload));
+
+            captureWrite(bytes, off, len, getLogRecordStacks());
         } catch (Throwable e) {
             handleException(e);
         } finally {
@@ -141,29 +284,269 @@ public class LogCaptureStorage {
         }
     }
 
+    /**
+     * Merges consecutive writes of one line by the current thread to one fd into a single event with the stacks of the first write.
+     * A line is captured once it's terminated, too long, or waits longer than the coalescing window.
+     * The event gets the id taken by the first write, and the events following it wait for it to be flushed,
+     * so events keep the order of the output without capturing the fragments of other threads and fds.
+     */
+    private static void captureCoalesced(FileDescriptor fd, byte[] bytes, int off, int len) throws IOException {
+        AtomicReference<PendingWrite> slot = (fd == FD_OUT ? PENDING_OUT_WRITE : PENDING_ERR_WRITE).get();
+        PendingWrite pending = slot.getAndSet(null);
+        long now = System.nanoTime();
+        if (pending != null && pending.isExpired(now)) {
+            capturePendingWrite(pending);
+            pending = null;
+        }
+        boolean lineTerminated = bytes[off + len - 1] == '\n';
+        if (pending == null) {
+            if (lineTerminated) {
+                captureWrite(bytes, off, len, getLogRecordStacks());
+                return;
+            }
+            long id = createNextEventId(Event.STD_OUTPUT_TYPE);
+            PENDING_WRITE_IDS.add(id);
+            pending = new PendingWrite(id, getLogRecordStacks(), now);
+        }
+        pending.myBytes.write(bytes, off, len);
+        if (lineTerminated || pending.myBytes.size() >= MAX_COALESCED_SIZE) {
+            capturePendingWrite(pending);
+            return;
+        }
+        slot.set(pending);
+        PENDING_WRITES.add(slot);
+        BatchFlusher flusher = FLUSHER;
+        if (flusher != null) {
+            flusher.wakeUp();
+        }
+    }
+
+    private static void capturePendingWrite(PendingWrite pending) throws IOException {
+        byte[] bytes = pending.myBytes.toByteArray();
+        try {
+            captureWrite(pending.myId, bytes, 0, bytes.length, pending.myEncodedStacks);
+        } finally {
+            // If the capture fails, the following events must not wait for the fragment forever.
+            PENDING_WRITE_IDS.remove(pending.myId);
+        }
+    }
+
+    private static void captureWrite(byte[] bytes, int off, int len, byte[] encodedStacks) throws IOException {
+        captureWrite(createNextEventId(Event.STD_OUTPUT_TYPE), bytes, off, len, encodedStacks);
+    }
+
+    private static void captureWrite(long id, byte[] bytes, int off, int len, byte[] encodedStacks) throws IOException {
+        ByteArrayOutputStream bas = new ByteArrayOutputStream(); // no need to close it
+        try (DataOutputStream dos = new DataOutputStream(bas)) {
+            encodeMessageAndStacks(dos, bytes, off, len, encodedStacks);
+        }
+        captureEvent(createEvent(id, Event.STD_OUTPUT_TYPE, bas.toByteArray()));
+    }
+
+    // Captures fragments of all threads, or only the ones waiting longer than the coalescing window.
+    private static void capturePendingWrites(boolean all) throws IOException {
+        if (PENDING_WRITES.isEmpty()) return;
+        long now = System.nanoTime();
+        for (AtomicReference<PendingWrite> slot : PENDING_WRITES) {
+            PendingWrite pending = slot.get();
+            if (pending != null && (all || pending.isExpired(now)) && slot.compareAndSet(pending, null)) {
+                capturePendingWrite(pending);
+            }
+            if (slot.get() == null) {
+                PENDING_WRITES.remove(slot);
+                // The owner could have set a new fragment before the removal.
+                if (slot.get() != null) {
+                    PENDING_WRITES.add(slot);
+                }
+            }
+        }
+    }
+
+    private static ThreadLocal<AtomicReference<PendingWrite>> createPendingWriteSlot() {
+        return new ThreadLocal<AtomicReference<PendingWrite>>() {
+            @Override
+            protected AtomicReference<PendingWrite> initialValue() {
+                return new AtomicReference<>();
+            }
+        };
+    }
+
     private static boolean hasBatchedLoggingBreakpointEvents() {
         return LAST_LOGGING_BREAKPOINT_EVENT_ID.get() > LAST_FLUSHED_EVENT_ID.get();
     }
 
+    private static Event createEvent(long id, byte type, byte[] payload) {
+        LogCaptureSpill spill = SPILL;
+        if (spill != null && BATCHING_ENABLED) {
+            try {
+                Event event = spill.spill(id, type, payload);
+                if (event != null) {
+                    return event;
+                }
+            } catch (Throwable e) {
+                handleSpillException(e);
+            }
+        }
+        return new Event(id, type, payload);
+    }
+
     private static void captureEvent(Event event) throws IOException {
         if (BATCHING_ENABLED) {
             EVENTS.add(event);
+            // The event of a fragment is queued, the following ones need not wait any longer.
+            PENDING_WRITE_IDS.remove(event.id);
+            BatchFlusher flusher = FLUSHER;
+            if (flusher != null) {
+                flusher.wakeUp();
+            }
             flushBatchedDataIfMoreThan(MAX_BATCHED_EVENTS_COUNT);
         } else {
             packAndSend(Collections.singletonList(event));
         }
     }
 
-    private static void encodeMessageAndCurrentStacks(DataOutputStream dos, byte[] bytes, int off, int len) throws IOException {
-        List<StackTraceElement> regularStack = CaptureStorage.getCurrentStackTraceWithoutAgentFrames();
-        List<StackTraceElement> capturedStack = CaptureStorage.getCurrentCapturedStack(MAX_STACK_DEPTH - regularStack.size());
+    /**
+     * Returns stacks shared by all writes of the log record the current thread is inside, or encodes the current stacks.
+     */
+    private static byte[] getLogRecordStacks() throws IOException {
+        LogRecordScope scope = LOG_RECORD_SCOPE.get();
+        if (scope.depth == 0) {
+            return encodeCurrentStacks();
+        }
+        if (scope.encodedStacks == null) {
+            scope.encodedStacks = encodeCurrentStacks();
+        }
+        return scope.encodedStacks;
+    }
+
+    private static void encodeMessageAndStacks(DataOutputStream dos, byte[] bytes, int off, int len, byte[] encodedStacks) throws IOException {
         dos.writeInt(len);
         dos.write(bytes, off, len);
-        CaptureStorage.writeAsyncStackTraceToStream(regularStack, dos);
-        if (capturedStack != null) {
+        dos.write(encodedStacks);
+    }
+
+    private static byte[] encodeCurrentStacks() throws IOException {
+        EncodedStack regularStack = getRegularStack();
+        return encodeStacks(regularStack, CaptureStorage.getCurrentCapturedStackHandle());
+    }
+
+    private static byte[] encodeStacks(EncodedStack regularStack, Object capturedStackHandle) throws IOException {
+        List<StackTraceElement> capturedStack = CaptureStorage.getCapturedStack(capturedStackHandle, MAX_STACK_DEPTH - regularStack.myDepth);
+        if (capturedStack == null) {
+            return regularStack.myBytes;
+        }
+        ByteArrayOutputStream bas = new ByteArrayOutputStream(); // no need to close it
+        try (DataOutputStream dos = new DataOutputStream(bas)) {
+            dos.write(regularStack.myBytes);
             CaptureStorage.writeAsyncStackTraceElementToStream(CaptureStorage.ASYNC_STACK_ELEMENT, dos);
             CaptureStorage.writeAsyncStackTraceToStream(capturedStack, dos);
         }
+        return bas.toByteArray();
+    }
+
+    /**
+     * Returns the encoded stack of the current thread, the same one for the writes from a call site during a short window.
+     * Log capture shares the overhead budget with the async stack traces capture,
+     * if it's exceeded, the stack is replaced with a throttling marker.
+     */
+    private static EncodedStack getRegularStack() throws IOException {
+        RegularStackCapture capture = new RegularStackCapture();
+        boolean executed = CaptureStorage.runWithOverheadTrackingAndWithoutThrowableCapture(CaptureStorage.CURRENT_CONTEXT.get(), capture);
+        if (!executed) {
+            return THROTTLED_STACK;
+        }
+        if (capture.myError != null) {
+            throw capture.myError;
+        }
+        return capture.myResult;
+    }
+
+    private static class RegularStackCapture implements Runnable {
+        private EncodedStack myResult;
+        private IOException myError;
+
+        @Override
+        public void run() {
+            try {
+                myResult = captureRegularStack();
+            } catch (IOException e) {
+                myError = e;
+            }
+        }
+    }
+
+    private static EncodedStack captureRegularStack() throws IOException {
+        CallSite callSite = CallSite.current();
+        if (callSite == null) {
+            return encodeStack(CaptureStorage.getCurrentStackTraceWithoutAgentFrames(), 0);
+        }
+        long now = System.nanoTime();
+        Map<CallSite, EncodedStack> cache = STACK_CACHE.get();
+        EncodedStack stack = cache.get(callSite);
+        if (stack == null || now - stack.myCreatedNanos >= STACK_CACHE_WINDOW_NS) {
+            stack = encodeStack(CaptureStorage.getCurrentStackTraceWithoutAgentFrames(), now);
+            cache.put(callSite, stack);
+        }
+        return stack;
+    }
+
+    private static EncodedStack encodeStack(List<StackTraceElement> stack, long createdNanos) throws IOException {
+        ByteArrayOutputStream bas = new ByteArrayOutputStream(); // no need to close it
+        try (DataOutputStream dos = new DataOutputStream(bas)) {
+            CaptureStorage.writeAsyncStackTraceToStream(stack, dos);
+        }
+        return new EncodedStack(bas.toByteArray(), stack.size(), createdNanos);
+    }
+
+    private static class EncodedStack {
+        private final byte[] myBytes;
+        private final int myDepth;
+        private final long myCreatedNanos;
+
+        private EncodedStack(byte[] bytes, int depth, long createdNanos) {
+            myBytes = bytes;
+            myDepth = depth;
+            myCreatedNanos = createdNanos;
+        }
+    }
+
+    /**
+     * The first frame of the current thread outside of the JDK and the logging frameworks, including the bytecode index.
+     * <p>
+     * Only the innermost application frame is compared, so calls reaching it from different callers,
+     * e.g. through a logging helper of the application, share the stack captured by the first of them
+     * for up to {@link #STACK_CACHE_WINDOW_NS}.
+     */
+    private static class CallSite {
+        private final String myClassName;
+        private final String myMethodName;
+        private final int myByteCodeIndex;
+
+        private CallSite(Object frame) {
+            myClassName = StackWalkerHelper.getClassName(frame);
+            myMethodName = StackWalkerHelper.getMethodName(frame);
+            myByteCodeIndex = StackWalkerHelper.getByteCodeIndex(frame);
+        }
+
+        // Returns null if the call site cannot be identified cheaply.
+        private static CallSite current() {
+            Object frame = StackWalkerHelper.findFrame(CALL_SITE_FINDER);
+            return frame != null ? new CallSite(frame) : null;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CallSite)) return false;
+            CallSite other = (CallSite)obj;
+            return myByteCodeIndex == other.myByteCodeIndex &&
+                   myMethodName.equals(other.myMethodName) &&
+                   myClassName.equals(other.myClassName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * myClassName.hashCode() + myMethodName.hashCode()) + myByteCodeIndex;
+        }
     }
 
     private static void handleException(Throwable e) {
@@ -174,15 +557,30 @@ public class LogCaptureStorage {
 
     // It's used by the debugger.
     private static void flushBatchedData() throws IOException {
+        capturePendingWrites(true);
         flushBatchedDataIfMoreThan(0);
     }
 
     private static void flushBatchedDataIfMoreThan(int eventsCountLimit) throws IOException {
         if (EVENTS.size() <= eventsCountLimit) return;
         ArrayList<Event> eventsSnapshot = new ArrayList<>(EVENTS);
+        // Events following a pending fragment wait for it, at most for the coalescing window.
+        Long firstPendingId = PENDING_WRITE_IDS.ceiling(Long.MIN_VALUE);
+        if (firstPendingId != null) {
+            Iterator<Event> iterator = eventsSnapshot.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().id > firstPendingId) {
+                    iterator.remove();
+                }
+            }
+        }
         if (eventsSnapshot.size() <= eventsCountLimit) return;
+        Collections.sort(eventsSnapshot, EVENTS_BY_ID);
         packAndSend(eventsSnapshot);
         EVENTS.removeAll(new HashSet<>(eventsSnapshot));
+        for (Event event : eventsSnapshot) {
+            event.release();
+        }
         long lastFlushedId = findMaxId(eventsSnapshot);
         setIfGreater(LAST_FLUSHED_EVENT_ID, lastFlushedId);
     }
@@ -197,9 +595,8 @@ public class LogCaptureStorage {
             for (Event event : events) {
                 dos.writeLong(event.id);
                 dos.writeByte(event.type);
-                byte[] bytes = event.payload;
-                dos.writeInt(bytes.length);
-                dos.write(bytes);
+                dos.writeInt(event.payloadSize());
+                event.writePayload(dos);
             }
         }
         // ensure to close the gzip stream before extracting compressed data.
@@ -225,10 +622,59 @@ public class LogCaptureStorage {
             ByteArrayOutputStream bas = new ByteArrayOutputStream(); // no need to close it
             try (DataOutputStream dos = new DataOutputStream(bas)) {
                 dos.writeInt(instrumentationId);
-                encodeMessageAndCurrentStacks(dos, messageBytes, 0, messageBytes.length);
+                encodeMessageAndStacks(dos, messageBytes, 0, messageBytes.length, encodeCurrentStacks());
             }
-            byte[] payload = bas.toByteArray();
-            captureEvent(new Event(id, Event.LOGGING_BREAKPOINT_TYPE, payload));
+            captureEvent(createEvent(id, Event.LOGGING_BREAKPOINT_TYPE, bas.toByteArray()));
+        } catch (Throwable e) {
+            handleException(e);
+        } finally {
+            CAPTURING.set(false);
+        }
+    }
+
+    // Message templates of the structured logging breakpoints by instrumentation id.
+    private static final ConcurrentHashMap<Integer, String[]> LOGGING_BREAKPOINT_TEMPLATES = new ConcurrentHashMap<>();
+
+    /**
+     * It's used by the debugger to register the message of a structured logging breakpoint once,
+     * the message is the literal parts interleaved with the values passed by {@link #loggingBreakpointHitWithArguments}.
+     */
+    @SuppressWarnings("unused")
+    public static void registerLoggingBreakpointTemplate(int instrumentationId, String[] parts) {
+        if (parts == null) {
+            LOGGING_BREAKPOINT_TEMPLATES.remove(instrumentationId);
+        } else {
+            LOGGING_BREAKPOINT_TEMPLATES.put(instrumentationId, parts.clone());
+        }
+    }
+
+    /**
+     * It's used in instrumentation for logging breakpoints with a registered template.
+     * <p>
+     * Unlike {@link #loggingBreakpointHit}, the message is not formatted here: strings and boxed primitives are kept as is,
+     * other values are converted to strings right away as they may change later.
+     * The message and the stack are encoded when the event is flushed, usually by the flush thread,
+     * with the template registered at the time of the hit.
+     * The array is owned by the storage after the call.
+     */
+    public static void loggingBreakpointHitWithArguments(int instrumentationId, Object[] arguments) {
+        if (!ENABLED || CAPTURING.get()) return;
+        // Outside of the capturing, so the output of toString() is captured as usual.
+        for (int i = 0; i < arguments.length; i++) {
+            if (!isImmutableValue(arguments[i])) {
+                arguments[i] = String.valueOf(arguments[i]);
+            }
+        }
+        CAPTURING.set(true);
+        try {
+            long id = createNextEventId(Event.LOGGING_BREAKPOINT_TYPE);
+            DeferredStackCapture capture = new DeferredStackCapture();
+            boolean executed = CaptureStorage.runWithOverheadTrackingAndWithoutThrowableCapture(CaptureStorage.CURRENT_CONTEXT.get(), capture);
+            // Registered arrays are never modified, so the reference is enough.
+            String[] template = LOGGING_BREAKPOINT_TEMPLATES.get(instrumentationId);
+            captureEvent(new DeferredLoggingBreakpointEvent(id, instrumentationId, template, arguments,
+                                                            executed ? capture.myThrowable : null,
+                                                            CaptureStorage.getCurrentCapturedStackHandle()));
         } catch (Throwable e) {
             handleException(e);
         } finally {
@@ -236,6 +682,208 @@ public class LogCaptureStorage {
         }
     }
 
+    private static boolean isImmutableValue(Object value) {
+        return value == null || value instanceof String ||
+               value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Float ||
+               value instanceof Short || value instanceof Byte || value instanceof Character || value instanceof Boolean;
+    }
+
+    // Creating a throwable is cheap, filling in its stack trace elements is left for the flush.
+    private static class DeferredStackCapture implements Runnable {
+        private Throwable myThrowable;
+
+        @Override
+        public void run() {
+            myThrowable = new Throwable();
+        }
+    }
+
+    /**
+     * A logging breakpoint hit encoded on the first flush, the same bytes are sent if the event is flushed again.
+     * The payload is small and short-lived, so it's kept in the heap even if spilling is enabled.
+     */
+    private static class DeferredLoggingBreakpointEvent extends Event {
+        private final int myInstrumentationId;
+        // The template registered at the hit, it may be replaced or removed before the flush.
+        private String[] myTemplate;
+        private Object[] myArguments;
+        private Throwable myStack; // null if the stack capture was throttled
+        private Object myCapturedStackHandle;
+        private byte[] myPayload;
+
+        DeferredLoggingBreakpointEvent(long id,
+                                       int instrumentationId,
+                                       String[] template,
+                                       Object[] arguments,
+                                       Throwable stack,
+                                       Object capturedStackHandle) {
+            super(id, LOGGING_BREAKPOINT_TYPE);
+            myInstrumentationId = instrumentationId;
+            myTemplate = template;
+            myArguments = arguments;
+            myStack = stack;
+            myCapturedStackHandle = capturedStackHandle;
+        }
+
+        @Override
+        int payloadSize() {
+            return getPayload().length;
+        }
+
+        @Override
+        void writePayload(DataOutputStream dos) throws IOException {
+            dos.write(getPayload());
+        }
+
+        private synchronized byte[] getPayload() {
+            if (myPayload == null) {
+                try {
+                    byte[] messageBytes = formatMessage(myTemplate, myArguments).getBytes(StandardCharsets.UTF_8);
+                    EncodedStack regularStack = myStack != null
+                                                ? encodeStack(CaptureStorage.getStackTraceWithoutAgentFrames(myStack), 0)
+                                                : THROTTLED_STACK;
+                    ByteArrayOutputStream bas = new ByteArrayOutputStream(); // no need to close it
+                    try (DataOutputStream dos = new DataOutputStream(bas)) {
+                        dos.writeInt(myInstrumentationId);
+                        encodeMessageAndStacks(dos, messageBytes, 0, messageBytes.length, encodeStacks(regularStack, myCapturedStackHandle));
+                    }
+                    myPayload = bas.toByteArray();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                myTemplate = null;
+                myArguments = null;
+                myStack = null;
+                myCapturedStackHandle = null;
+            }
+            return myPayload;
+        }
+    }
+
+    // Without a template, the values are separated with spaces.
+    static String formatMessage(String[] template, Object[] arguments) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < arguments.length; i++) {
+            if (template != null && i < template.length) {
+                builder.append(template[i]);
+            } else if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(arguments[i]);
+        }
+        if (template != null) {
+            for (int i = arguments.length; i < template.length; i++) {
+                builder.append(template[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    // It's used in instrumentation, see LogCaptureTransformer.LOG_RECORD_METHODS.
+    public static void logRecordStarted() {
+        LOG_RECORD_SCOPE.get().depth++;
+    }
+
+    // It's used in instrumentation, see LogCaptureTransformer.LOG_RECORD_METHODS.
+    public static void logRecordFinished() {
+        LogRecordScope scope = LOG_RECORD_SCOPE.get();
+        // The method could be retransformed while the record was in progress.
+        if (scope.depth == 0) return;
+        if (--scope.depth == 0) {
+            scope.encodedStacks = null;
+        }
+    }
+
+    /**
+     * Flushes batched events in the background.
+     * <p>
+     * The thread is parked while there are no events and is woken up by the first one.
+     * Then it collects events for a batch window and flushes them.
+     * The window adapts to the observed arrival rate, so that a batch is flushed here
+     * before it reaches the size limit and gets flushed on the application thread,
+     * and to the packing latency, so that packing does not take most of the time.
+     * It never exceeds the configured flush period.
+     */
+    static class BatchFlusher implements Runnable {
+        static final long MIN_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(1);
+        // Weight of the last batch in the smoothed arrival rate.
+        private static final double RATE_SMOOTHING = 0.3;
+        // Packing should take no more than this part of the window.
+        private static final int PACK_LATENCY_RATIO = 4;
+
+        private final long myMaxWindowNs;
+        private long myWindowNs;
+        private double myArrivalRate = -1; // events per nanosecond
+        private volatile boolean myIdle;
+        private volatile Thread myThread;
+
+        BatchFlusher(long maxWindowNs) {
+            myMaxWindowNs = Math.max(maxWindowNs, MIN_WINDOW_NS);
+            myWindowNs = myMaxWindowNs;
+        }
+
+        void wakeUp() {
+            if (myIdle) {
+                myIdle = false;
+                LockSupport.unpark(myThread);
+            }
+        }
+
+        @Override
+        public void run() {
+            CAPTURING.set(true);
+            while (true) {
+                try {
+                    if (EVENTS.isEmpty()) {
+                        if (!PENDING_WRITES.isEmpty()) {
+                            // Events added meanwhile don't wake the thread up, so they wait no longer than the flush period.
+                            LockSupport.parkNanos(this, Math.min(COALESCING_WINDOW_NS, myMaxWindowNs));
+                            capturePendingWrites(false);
+                            continue;
+                        }
+                        // Recheck after publishing the idle state, so an event added concurrently cannot be missed.
+                        myIdle = true;
+                        if (EVENTS.isEmpty() && PENDING_WRITES.isEmpty()) {
+                            LockSupport.park(this);
+                        }
+                        myIdle = false;
+                        continue;
+                    }
+                    long windowStart = System.nanoTime();
+                    long countBefore = EVENT_COUNTER.get();
+                    LockSupport.parkNanos(this, myWindowNs);
+                    long packStart = System.nanoTime();
+                    // The event that woke us up is counted too.
+                    long arrived = EVENT_COUNTER.get() - countBefore + 1;
+                    capturePendingWrites(false);
+                    flushBatchedDataIfMoreThan(0);
+                    long packEnd = System.nanoTime();
+                    adjustWindow(arrived, packStart - windowStart, packEnd - packStart);
+                } catch (Throwable e) {
+                    // Capturing is disabled, the remaining events are flushed by the shutdown hook.
+                    handleException(e);
+                    return;
+                }
+            }
+        }
+
+        private void adjustWindow(long arrived, long elapsedNs, long packNs) {
+            double rate = (double)arrived / Math.max(elapsedNs, 1);
+            myArrivalRate = myArrivalRate < 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * myArrivalRate;
+            myWindowNs = computeWindow(myArrivalRate, packNs, MAX_BATCHED_EVENTS_COUNT, myMaxWindowNs);
+        }
+
+        /**
+         * The window to collect a half of the maximum batch at the given arrival rate,
+         * but long enough to amortize packing and within [MIN_WINDOW_NS, maxWindowNs].
+         */
+        static long computeWindow(double arrivalRate, long packNs, int maxBatchedEvents, long maxWindowNs) {
+            double window = arrivalRate > 0 ? Math.max(maxBatchedEvents, 2) / 2.0 / arrivalRate : maxWindowNs;
+            window = Math.max(window, (double)packNs * PACK_LATENCY_RATIO);
+            return Math.max(MIN_WINDOW_NS, Math.min(maxWindowNs, (long)Math.min(window, Long.MAX_VALUE)));
+        }
+    }
+
     private static long findMaxId(ArrayList<Event> events) {
         long lastFlushedId = -1;
         for (int i = events.size() - 1; i >= 0; i--) {
@@ -11,14 +11,21 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 
 import static com.intellij.rt.debugger.agent.CaptureAgent.getInternalClsName;
 
 class LogCaptureTransformer implements ClassFileTransformer {
-    public static void init(Instrumentation instrumentation) {
-        instrumentation.addTransformer(new LogCaptureTransformer(), true);
+    static final String FRAMEWORKS_CAPTURE_ENABLED_PROPERTY = "logCaptureFrameworksEnabled";
+
+    public static void init(Properties properties, Instrumentation instrumentation) {
+        boolean frameworksCaptureEnabled = Boolean.parseBoolean(properties.getProperty(FRAMEWORKS_CAPTURE_ENABLED_PROPERTY, "false"));
+        LogCaptureTransformer transformer = new LogCaptureTransformer(frameworksCaptureEnabled);
+        instrumentation.addTransformer(transformer, true);
         for (Class<?> aClass : instrumentation.getAllLoadedClasses()) {
-            if (CLASS_NAME.equals(getInternalClsName(aClass))) {
+            if (transformer.shouldTransform(getInternalClsName(aClass))) {
                 try {
                     instrumentation.retransformClasses(aClass);
                 } catch (UnmodifiableClassException e) {
@@ -31,12 +38,47 @@ class LogCaptureTransformer implements ClassFileTransformer {
 
     static final String CLASS_NAME = getInternalClsName(FileOutputStream.class);
 
+    /**
+     * Logging framework methods that are called once per logical log record (internal class name -> method name and descriptor).
+     * <p>
+     * All writes to stdout/stderr done by the appenders inside such a call share one stack trace,
+     * so the stack is walked once per record instead of once per written chunk.
+     * SLF4J is covered by its Logback and Log4j2 bindings.
+     */
+    static final Map<String, String> LOG_RECORD_METHODS = new HashMap<>();
+
+    static {
+        LOG_RECORD_METHODS.put("java/util/logging/Logger",
+                "log(Ljava/util/logging/LogRecord;)V");
+        LOG_RECORD_METHODS.put("ch/qos/logback/classic/Logger",
+                "callAppenders(Lch/qos/logback/classic/spi/ILoggingEvent;)V");
+        LOG_RECORD_METHODS.put("org/apache/logging/log4j/core/Logger",
+                "logMessage(Ljava/lang/String;Lorg/apache/logging/log4j/Level;Lorg/apache/logging/log4j/Marker;" +
+                        "Lorg/apache/logging/log4j/message/Message;Ljava/lang/Throwable;)V");
+    }
+
+    private final boolean myFrameworksCaptureEnabled;
+
+    LogCaptureTransformer(boolean frameworksCaptureEnabled) {
+        myFrameworksCaptureEnabled = frameworksCaptureEnabled;
+    }
+
+    private boolean shouldTransform(String className) {
+        return CLASS_NAME.equals(className) || (myFrameworksCaptureEnabled && LOG_RECORD_METHODS.containsKey(className));
+    }
+
     @Override
     public byte[] transform(ClassLoader loader,
                             String className,
                             Class<?> classBeingRedefined,
                             ProtectionDomain protectionDomain,
                             byte[] classfileBuffer) {
+        if (myFrameworksCaptureEnabled && className != null) {
+            String logRecordMethod = LOG_RECORD_METHODS.get(className);
+            if (logRecordMethod != null) {
+                return transformLogRecordMethod(loader, className, classfileBuffer, logRecordMethod);
+            }
+        }
         if (CLASS_NAME.equals(className)) {
             try {
                 ClassTransformer transformer = new ClassTransformer(className, classfileBuffer, ClassWriter.COMPUTE_FRAMES, loader);
@@ -78,6 +120,72 @@ class LogCaptureTransformer implements ClassFileTransformer {
         return null;
     }
 
+    private static byte[] transformLogRecordMethod(ClassLoader loader, String className, byte[] classfileBuffer, final String logRecordMethod) {
+        try {
+            ClassTransformer transformer = new ClassTransformer(className, classfileBuffer, ClassWriter.COMPUTE_FRAMES, loader);
+
+            return transformer.accept(new ClassVisitor(Opcodes.API_VERSION, transformer.writer) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    final MethodVisitor superMethodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                    if ((access & Opcodes.ACC_ABSTRACT) != 0 || !logRecordMethod.equals(name + descriptor)) {
+                        return superMethodVisitor;
+                    }
+
+                    return new MethodNode(api, access, name, descriptor, signature, exceptions) {
+                        @Override
+                        public void visitEnd() {
+                            insertLogRecordScope(this);
+                            accept(superMethodVisitor);
+                        }
+                    };
+                }
+            }, 0, true);
+        }
+        catch (Exception e) {
+            System.err.println("Capture agent: failed to instrument " + className);
+            e.printStackTrace(System.err);
+        }
+        return null;
+    }
+
+    /**
+     * Wraps the method body into
+     * <code>LogCaptureStorage.logRecordStarted(); try { ... } finally { LogCaptureStorage.logRecordFinished(); }</code>.
+     */
+    private static void insertLogRecordScope(MethodNode method) {
+        InsnList instructions = method.instructions;
+        LabelNode startTry = new LabelNode();
+        LabelNode endTry = new LabelNode();
+        LabelNode handler = new LabelNode();
+
+        for (AbstractInsnNode instruction = instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+            int opcode = instruction.getOpcode();
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                instructions.insertBefore(instruction, createLogCaptureStorageCall("logRecordFinished"));
+            }
+        }
+
+        InsnList prologue = createLogCaptureStorageCall("logRecordStarted");
+        prologue.add(startTry);
+        instructions.insert(prologue);
+
+        instructions.add(endTry);
+        instructions.add(handler);
+        instructions.add(createLogCaptureStorageCall("logRecordFinished"));
+        instructions.add(new InsnNode(Opcodes.ATHROW));
+        method.tryCatchBlocks.add(new TryCatchBlockNode(startTry, endTry, handler, null));
+    }
+
+    private static InsnList createLogCaptureStorageCall(String methodName) {
+        InsnList instructions = new InsnList();
+        instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
+                getInternalClsName(LogCaptureStorage.class),
+                methodName, "()V",
+                false));
+        return instructions;
+    }
+
     private static void insertCaptureCall(InsnList instructions, boolean isWithOffset) {
         LineNumberNode firstLineNumber = findFirstLineNumber(instructions);
         InsnList captureCall = createCaptureCall(firstLineNumber, isWithOffset);
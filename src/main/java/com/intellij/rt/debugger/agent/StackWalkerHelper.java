@@ -0,0 +1,229 @@
+package com.intellij.rt.debugger.agent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reflective access to {@code java.lang.StackWalker}, the agent is compiled for Java 7.
+ * <p>
+ * Walking a few top frames is much cheaper than {@code new Throwable().getStackTrace()},
+ * which resolves the whole stack. On Java 8 and older the helper is not available.
+ */
+final class StackWalkerHelper {
+    private static final String AGENT_PACKAGE = StackWalkerHelper.class.getPackage().getName();
+
+    private static final Object WALKER;
+    private static final Method WALK;
+    private static final Class<?> FUNCTION_CLASS;
+    private static final Method ITERATOR;
+    private static final Method GET_CLASS_NAME;
+    private static final Method GET_METHOD_NAME;
+    private static final Method GET_BYTE_CODE_INDEX;
+    private static final Method TO_STACK_TRACE_ELEMENT;
+
+    // Function proxies collecting frames, by limit.
+    private static final ConcurrentMap<Integer, Object> COLLECTORS = new ConcurrentHashMap<>();
+
+    private static volatile boolean AVAILABLE;
+
+    static {
+        Object walker = null;
+        Method walk = null;
+        Class<?> functionClass = null;
+        Method iterator = null;
+        Method getClassName = null;
+        Method getMethodName = null;
+        Method getByteCodeIndex = null;
+        Method toStackTraceElement = null;
+        try {
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            functionClass = Class.forName("java.util.function.Function");
+            walker = walkerClass.getMethod("getInstance").invoke(null);
+            walk = walkerClass.getMethod("walk", functionClass);
+            iterator = Class.forName("java.util.stream.BaseStream").getMethod("iterator");
+            getClassName = frameClass.getMethod("getClassName");
+            getMethodName = frameClass.getMethod("getMethodName");
+            getByteCodeIndex = frameClass.getMethod("getByteCodeIndex");
+            toStackTraceElement = frameClass.getMethod("toStackTraceElement");
+            AVAILABLE = true;
+        } catch (Throwable ignored) {
+            // Java 8 or older
+        }
+        WALKER = walker;
+        WALK = walk;
+        FUNCTION_CLASS = functionClass;
+        ITERATOR = iterator;
+        GET_CLASS_NAME = getClassName;
+        GET_METHOD_NAME = getMethodName;
+        GET_BYTE_CODE_INDEX = getByteCodeIndex;
+        TO_STACK_TRACE_ELEMENT = toStackTraceElement;
+    }
+
+    private StackWalkerHelper() {
+    }
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Returns up to {@code limit} top frames of the current thread following the agent frames,
+     * or null if {@code StackWalker} is not available.
+     * Frames are opaque, use the accessors of this class.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> getTopFrames(int limit) {
+        if (!AVAILABLE) return null;
+        try {
+            return (List<Object>)WALK.invoke(WALKER, getCollector(limit));
+        } catch (Throwable e) {
+            AVAILABLE = false;
+            System.err.println("Debugger agent: cannot walk the stack, falling back to stack traces");
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a finder for {@link #findFrame}, which skips the frames with class names starting with any of the prefixes,
+     * or null if {@code StackWalker} is not available.
+     */
+    static Object createFrameFinder(String[] skippedClassNamePrefixes) {
+        if (!AVAILABLE) return null;
+        return Proxy.newProxyInstance(StackWalkerHelper.class.getClassLoader(),
+                                      new Class<?>[]{FUNCTION_CLASS},
+                                      new FrameFinder(skippedClassNamePrefixes));
+    }
+
+    /**
+     * Returns the first frame of the current thread following the agent frames and the frames skipped by the finder,
+     * or null if there is no such frame or {@code StackWalker} is not available.
+     * Only the class names of the skipped frames are read.
+     */
+    static Object findFrame(Object finder) {
+        if (!AVAILABLE || finder == null) return null;
+        try {
+            return WALK.invoke(WALKER, finder);
+        } catch (Throwable e) {
+            AVAILABLE = false;
+            System.err.println("Debugger agent: cannot walk the stack, falling back to stack traces");
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    static String getClassName(Object frame) {
+        return (String)invoke(GET_CLASS_NAME, frame);
+    }
+
+    static String getMethodName(Object frame) {
+        return (String)invoke(GET_METHOD_NAME, frame);
+    }
+
+    static int getByteCodeIndex(Object frame) {
+        return (Integer)invoke(GET_BYTE_CODE_INDEX, frame);
+    }
+
+    static StackTraceElement toStackTraceElement(Object frame) {
+        return (StackTraceElement)invoke(TO_STACK_TRACE_ELEMENT, frame);
+    }
+
+    private static Object invoke(Method method, Object frame) {
+        try {
+            return method.invoke(frame);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object getCollector(int limit) {
+        Object collector = COLLECTORS.get(limit);
+        if (collector == null) {
+            collector = Proxy.newProxyInstance(StackWalkerHelper.class.getClassLoader(),
+                                               new Class<?>[]{FUNCTION_CLASS},
+                                               new FrameCollector(limit));
+            Object previous = COLLECTORS.putIfAbsent(limit, collector);
+            if (previous != null) {
+                collector = previous;
+            }
+        }
+        return collector;
+    }
+
+    // Implements Function<Stream<StackFrame>, List<StackFrame>>, the stream is only valid inside the walk.
+    private static class FrameCollector implements InvocationHandler {
+        private final int myLimit;
+
+        private FrameCollector(int limit) {
+            myLimit = limit;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("apply")) {
+                if (method.getName().equals("equals")) return proxy == args[0];
+                if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                if (method.getName().equals("toString")) return "FrameCollector(" + myLimit + ")";
+                throw new UnsupportedOperationException(method.getName());
+            }
+            Iterator<?> frames = (Iterator<?>)ITERATOR.invoke(args[0]);
+            ArrayList<Object> result = new ArrayList<>(myLimit);
+            boolean agentFrames = true;
+            while (result.size() < myLimit && frames.hasNext()) {
+                Object frame = frames.next();
+                if (agentFrames && getClassName(frame).startsWith(AGENT_PACKAGE)) continue;
+                agentFrames = false;
+                result.add(frame);
+            }
+            return result;
+        }
+    }
+
+    // Implements Function<Stream<StackFrame>, StackFrame>, the frame is valid after the walk.
+    private static class FrameFinder implements InvocationHandler {
+        private final String[] mySkippedPrefixes;
+
+        private FrameFinder(String[] skippedPrefixes) {
+            mySkippedPrefixes = skippedPrefixes.clone();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("apply")) {
+                if (method.getName().equals("equals")) return proxy == args[0];
+                if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                if (method.getName().equals("toString")) return "FrameFinder" + Arrays.toString(mySkippedPrefixes);
+                throw new UnsupportedOperationException(method.getName());
+            }
+            Iterator<?> frames = (Iterator<?>)ITERATOR.invoke(args[0]);
+            boolean agentFrames = true;
+            while (frames.hasNext()) {
+                Object frame = frames.next();
+                String className = getClassName(frame);
+                if (agentFrames && className.startsWith(AGENT_PACKAGE)) continue;
+                agentFrames = false;
+                if (!isSkipped(className)) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        private boolean isSkipped(String className) {
+            for (String prefix : mySkippedPrefixes) {
+                if (className.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.intellij.rt.debugger.agent;
+
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+
+public class CollectionBreakpointInstrumentorTest {
+    @BeforeClass
+    public static void setUp() throws Exception {
+        CollectionBreakpointStorage.init(new Properties());
+        CollectionBreakpointInstrumentor.initializeKnownMethods();
+        // set from the debugger
+        Field enabled = CollectionBreakpointStorage.class.getDeclaredField("ENABLED");
+        enabled.setAccessible(true);
+        enabled.set(null, true);
+    }
+
+    @Test
+    public void proxyCapturesKnownListMethods() throws Exception {
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>)CollectionBreakpointInstrumentor.wrapCollection(new ArrayList<String>(), "Ljava/util/List;");
+        list.add("a");
+        list.add(0, "b");
+        list.set(1, "c");
+        list.remove(0);
+        list.addAll(Arrays.asList("d", "e"));
+        list.removeIf(new Predicate<String>() {
+            @Override
+            public boolean test(String s) {
+                return s.equals("e");
+            }
+        });
+        list.remove("missing");
+        Assert.assertEquals(Arrays.asList("+a", "+b", "-a", "+c", "-b", "+d", "+e", "-e"), getModifications(list));
+        Assert.assertEquals(Arrays.asList("c", "d"), list);
+    }
+
+    @Test
+    public void proxyCapturesKnownMapMethods() throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<String, String> map = (Map<String, String>)CollectionBreakpointInstrumentor.wrapCollection(new HashMap<String, String>(), "Ljava/util/Map;");
+        map.put("k", "v");
+        map.put("k", "v");
+        map.remove("k");
+        map.merge("m", "1", new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String s1, String s2) {
+                return s1 + s2;
+            }
+        });
+        map.putIfAbsent("m", "2");
+        Map<String, String> added = new HashMap<>();
+        added.put("m", "3");
+        map.putAll(added);
+        Assert.assertEquals(Arrays.asList("+k=v", "-k=v", "+m=1", "-m=1", "+m=3"), getModifications(map));
+    }
+
+    @Test
+    public void proxyCapturesConditionalMapMethodsByResult() throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<String, String> map = (Map<String, String>)CollectionBreakpointInstrumentor.wrapCollection(new HashMap<String, String>(), "Ljava/util/Map;");
+        map.put("k", "v");
+        map.remove("k", "x");
+        map.replace("k", "x", "y");
+        map.replace("k", "v", "w");
+        map.replace("k", "x");
+        map.replace("missing", "y");
+        map.put("n", null);
+        map.replace("n", "1");
+        map.remove("k", "x");
+        map.putIfAbsent("p", "1");
+        map.putIfAbsent("p", "2");
+        Assert.assertEquals(Arrays.asList("+k=v", "-k=v", "+k=w", "-k=w", "+k=x", "-n=null", "+n=1", "-k=x", "+p=1"), getModifications(map));
+    }
+
+    @Test
+    public void proxyKeepsAccessOrderOfLinkedHashMap() throws Exception {
+        LinkedHashMap<String, String> original = new LinkedHashMap<>(16, 0.75f, true);
+        original.put("a", "1");
+        original.put("b", "2");
+        original.put("c", "3");
+        @SuppressWarnings("unchecked")
+        Map<String, String> map = (Map<String, String>)CollectionBreakpointInstrumentor.wrapCollection(original, "Ljava/util/Map;");
+        map.remove("a", "x");
+        map.replace("a", "x", "y");
+        map.computeIfPresent("missing", new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String key, String value) {
+                return value;
+            }
+        });
+        Map<String, String> added = new HashMap<>();
+        added.put("d", "4");
+        map.putAll(added);
+        map.merge("e", "5", new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String s1, String s2) {
+                return s1 + s2;
+            }
+        });
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d", "e"), new ArrayList<>(original.keySet()));
+        Assert.assertEquals(Arrays.asList("+d=4", "+e=5"), getModifications(map));
+    }
+
+    @Test
+    public void rejectedKeysAreNotReported() throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<String, String> map = (Map<String, String>)CollectionBreakpointInstrumentor.wrapCollection(new TreeMap<String, String>(), "Ljava/util/Map;");
+        Map<String, String> added = new HashMap<>();
+        added.put(null, "1");
+        PrintStream err = System.err;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(output));
+        try {
+            try {
+                map.computeIfAbsent(null, new Function<String, String>() {
+                    @Override
+                    public String apply(String key) {
+                        return "1";
+                    }
+                });
+                Assert.fail();
+            }
+            catch (NullPointerException ignored) {
+            }
+            try {
+                map.putAll(added);
+                Assert.fail();
+            }
+            catch (NullPointerException ignored) {
+            }
+        }
+        finally {
+            System.setErr(err);
+        }
+        Assert.assertEquals("", output.toString());
+        Assert.assertTrue(getModifications(map).isEmpty());
+    }
+
+    @Test
+    public void proxyCapturesEveryElementAppendedByAddAll() throws Exception {
+        @SuppressWarnings("unchecked")
+        Queue<String> queue = (Queue<String>)CollectionBreakpointInstrumentor.wrapCollection(new ArrayDeque<>(Arrays.asList("a")), "Ljava/util/Queue;");
+        queue.addAll(Arrays.asList("a", "b", "b"));
+        Assert.assertEquals(Arrays.asList("+a", "+b", "+b"), getModifications(queue));
+
+        @SuppressWarnings("unchecked")
+        Set<String> set = (Set<String>)CollectionBreakpointInstrumentor.wrapCollection(new HashSet<>(Arrays.asList("a")), "Ljava/util/Set;");
+        set.addAll(Arrays.asList("a", "b", "b"));
+        Assert.assertEquals(Arrays.asList("+b"), getModifications(set));
+    }
+
+    @Test
+    public void proxyPassesUnknownAndImmutableMethodsThrough() throws Exception {
+        CopyCountingList original = new CopyCountingList();
+        original.add("a");
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>)CollectionBreakpointInstrumentor.wrapCollection(original, "Ljava/util/List;");
+        Assert.assertEquals(0, list.indexOf("a"));
+        Assert.assertEquals(0, list.lastIndexOf("a"));
+        Assert.assertEquals(1, list.toArray(new String[0]).length);
+        list.forEach(new Consumer<String>() {
+            @Override
+            public void accept(String s) {
+            }
+        });
+        list.add("b");
+        Assert.assertEquals(0, original.myCopies);
+        Assert.assertEquals(Arrays.asList("+b"), getModifications(list));
+    }
+
+    @Test
+    public void proxyComparesSnapshotsForMutatingDefaultMethods() throws Exception {
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>)CollectionBreakpointInstrumentor.wrapCollection(new ArrayList<>(Arrays.asList("b", "a")), "Ljava/util/List;");
+        list.sort(new Comparator<String>() {
+            @Override
+            public int compare(String s1, String s2) {
+                return s1.compareTo(s2);
+            }
+        });
+        Assert.assertEquals(0, getModifications(list).size());
+        list.replaceAll(new UnaryOperator<String>() {
+            @Override
+            public String apply(String s) {
+                return s.equals("a") ? "c" : s;
+            }
+        });
+        Assert.assertEquals(Arrays.asList("-a", "+c"), getModifications(list));
+    }
+
+    @Test
+    public void proxyKeepsInterfacesOfCollection() throws Exception {
+        ArrayList<String> original = new ArrayList<>();
+        Object wrapped = CollectionBreakpointInstrumentor.wrapCollection(original, "Ljava/util/List;");
+        Assert.assertNotSame(original, wrapped);
+        Assert.assertTrue(wrapped instanceof RandomAccess);
+        Assert.assertTrue(wrapped instanceof Cloneable);
+        Assert.assertTrue(wrapped instanceof Serializable);
+
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>)wrapped;
+        list.add("a");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(list);
+        }
+        @SuppressWarnings("unchecked")
+        List<String> copy = (List<String>)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        Assert.assertEquals(Arrays.asList("a"), copy);
+        copy.add("b");
+        Assert.assertEquals(Arrays.asList("+b"), getModifications(copy));
+    }
+
+    @Test
+    public void collectionInObjectFieldIsWrapped() throws Exception {
+        ArrayList<String> original = new ArrayList<>();
+        Object wrapped = CollectionBreakpointInstrumentor.wrapCollection(original, "Ljava/lang/Object;");
+        Assert.assertNotSame(original, wrapped);
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>)wrapped;
+        list.add("a");
+        list.add("a");
+        Assert.assertEquals(Arrays.asList("+a", "+a"), getModifications(list));
+        Assert.assertEquals(Arrays.asList("a", "a"), original);
+    }
+
+    @Test
+    public void collectionIsNotWrappedIfProxyCannotReplaceIt() {
+        ArrayList<String> list = new ArrayList<>();
+        Assert.assertSame(list, CollectionBreakpointInstrumentor.wrapCollection(list, "Ljava/util/ArrayList;"));
+        Assert.assertSame(list, CollectionBreakpointInstrumentor.wrapCollection(list, "Ljava/util/Map;"));
+        HiddenInterfaceList hidden = new HiddenInterfaceList();
+        Assert.assertSame(hidden, CollectionBreakpointInstrumentor.wrapCollection(hidden, "Ljava/util/List;"));
+    }
+
+    @Test
+    public void proxyStacksStartAtCaller() throws Exception {
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>)CollectionBreakpointInstrumentor.wrapCollection(new ArrayList<>(Arrays.asList("b")), "Ljava/util/List;");
+        list.add("a");
+        list.clear();
+        @SuppressWarnings("unchecked")
+        Map<String, String> map = (Map<String, String>)CollectionBreakpointInstrumentor.wrapCollection(new ConcurrentHashMap<String, String>(), "Ljava/util/Map;");
+        map.put("k", "v");
+        map.putIfAbsent("m", "v");
+        List<Object> modifications = new ArrayList<>(Arrays.asList(CollectionBreakpointStorage.getCollectionModifications(list)));
+        modifications.addAll(Arrays.asList(CollectionBreakpointStorage.getCollectionModifications(map)));
+        Assert.assertEquals(5, modifications.size());
+        for (Object info : modifications) {
+            Method getStackTrace = info.getClass().getSuperclass().getDeclaredMethod("getStackTrace");
+            getStackTrace.setAccessible(true);
+            List<?> stack = (List<?>)getStackTrace.invoke(info);
+            Assert.assertFalse(stack.isEmpty());
+            StackTraceElement top = (StackTraceElement)stack.get(0);
+            Assert.assertEquals(CollectionBreakpointInstrumentorTest.class.getName(), top.getClassName());
+            Assert.assertEquals("proxyStacksStartAtCaller", top.getMethodName());
+        }
+    }
+
+    @Test
+    public void instanceFiltersFindEveryAddedInstance() throws Exception {
+        Class<?> filtersClass = Class.forName(CollectionBreakpointInstrumentor.class.getName() + "$InstanceFilters");
+        Constructor<?> constructor = filtersClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        final Object filters = constructor.newInstance();
+        final Method add = filtersClass.getDeclaredMethod("add", Object.class);
+        Method get = filtersClass.getDeclaredMethod("get", Object.class);
+        add.setAccessible(true);
+        get.setAccessible(true);
+
+        Assert.assertNull(get.invoke(filters, new Object()));
+
+        // more instances than filter bits, added concurrently, so the bits of the words are set by several threads
+        final Object[][] added = new Object[4][50000];
+        Thread[] threads = new Thread[added.length];
+        for (int i = 0; i < threads.length; i++) {
+            final Object[] instances = added[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < instances.length; j++) {
+                            instances[j] = new Object();
+                            add.invoke(filters, instances[j]);
+                        }
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Object[] instances : added) {
+            for (Object instance : instances) {
+                Assert.assertNotNull(get.invoke(filters, instance));
+            }
+        }
+        Object lock = get.invoke(filters, added[0][0]);
+        add.invoke(filters, added[0][0]);
+        Assert.assertSame(lock, get.invoke(filters, added[0][0]));
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNull(get.invoke(filters, new Object()));
+        }
+    }
+
+    @Test
+    public void loadedClassesIndexForgetsNamesWhichAreNeverDefined() throws Exception {
+        final int[] scans = new int[1];
+        Instrumentation instrumentation = (Instrumentation)Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{Instrumentation.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getAllLoadedClasses")) {
+                            scans[0]++;
+                            return new Class<?>[]{String.class};
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        Class<?> indexClass = Class.forName(CollectionBreakpointInstrumentor.class.getName() + "$LoadedClassesIndex");
+        Constructor<?> constructor = indexClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object index = constructor.newInstance();
+        Method onClassLoaded = indexClass.getDeclaredMethod("onClassLoaded", String.class);
+        Method get = indexClass.getDeclaredMethod("get", Collection.class);
+        onClassLoaded.setAccessible(true);
+        get.setAccessible(true);
+        Field instrumentationField = CollectionBreakpointInstrumentor.class.getDeclaredField("ourInstrumentation");
+        instrumentationField.setAccessible(true);
+        Object oldInstrumentation = instrumentationField.get(null);
+        instrumentationField.set(null, instrumentation);
+        try {
+            // loads before the first scan are not recorded, the scan finds them
+            onClassLoaded.invoke(index, "test/Early");
+            Assert.assertEquals(Arrays.asList(String.class), get.invoke(index, Arrays.asList("java/lang/String", "test/Early")));
+            Assert.assertEquals(1, scans[0]);
+            get.invoke(index, Collections.singleton("test/Early"));
+            Assert.assertEquals(1, scans[0]);
+
+            onClassLoaded.invoke(index, "test/NeverDefined");
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(((List<?>)get.invoke(index, Collections.singleton("test/NeverDefined"))).isEmpty());
+            }
+            Assert.assertEquals(3, scans[0]);
+        }
+        finally {
+            instrumentationField.set(null, oldInstrumentation);
+        }
+    }
+
+    private static List<String> getModifications(Object collection) throws Exception {
+        List<String> result = new ArrayList<>();
+        for (Object info : CollectionBreakpointStorage.getCollectionModifications(collection)) {
+            Method getElement = info.getClass().getDeclaredMethod("getElement");
+            Method isAddition = info.getClass().getDeclaredMethod("isAddition");
+            getElement.setAccessible(true);
+            isAddition.setAccessible(true);
+            Object element = getElement.invoke(info);
+            if (element instanceof Map.Entry) {
+                element = ((Map.Entry<?, ?>)element).getKey() + "=" + ((Map.Entry<?, ?>)element).getValue();
+            }
+            result.add(((Boolean)isAddition.invoke(info) ? "+" : "-") + element);
+        }
+        return result;
+    }
+
+    public static class CopyCountingList extends ArrayList<String> {
+        int myCopies;
+
+        @Override
+        public Object[] toArray() {
+            myCopies++;
+            return super.toArray();
+        }
+    }
+
+    interface HiddenInterface {
+    }
+
+    public static class HiddenInterfaceList extends ArrayList<String> implements HiddenInterface {
+    }
+}
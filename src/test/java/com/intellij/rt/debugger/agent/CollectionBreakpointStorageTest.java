@@ -0,0 +1,259 @@
+package com.intellij.rt.debugger.agent;
+
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+
+public class CollectionBreakpointStorageTest {
+    @Before
+    public void setUp() throws Exception {
+        // set from the debugger
+        Field enabled = CollectionBreakpointStorage.class.getDeclaredField("ENABLED");
+        enabled.setAccessible(true);
+        enabled.set(null, true);
+    }
+
+    @Test
+    public void wholeHistoryIsKeptByDefault() throws Exception {
+        CollectionBreakpointStorage.init(new Properties());
+        Object collection = new Object();
+        for (int i = 0; i < 20000; i++) {
+            CollectionBreakpointStorage.saveCollectionModification(collection, i, true);
+        }
+        Assert.assertEquals(0, CollectionBreakpointStorage.getEvictedCollectionModificationsCount(collection));
+        List<Object> elements = getElements(collection);
+        Assert.assertEquals(20000, elements.size());
+        Assert.assertEquals(0, elements.get(0));
+        Assert.assertEquals(19999, elements.get(19999));
+    }
+
+    @Test
+    public void weakElementsReferringToCollectionDoNotKeepItsHistory() throws Exception {
+        initWeakElements();
+        List<Object> collection = new ArrayList<>();
+        collection.add(collection);
+        CollectionBreakpointStorage.saveCollectionModification(collection, collection, true);
+        WeakReference<Object> collectionReference = new WeakReference<Object>(collection);
+        collection = null;
+        assertCollected(collectionReference);
+    }
+
+    @Test
+    public void weakFieldValuesReferringToOwnerDoNotKeepItsHistory() throws Exception {
+        initWeakElements();
+        // the owner keeps its children, each child refers to its parent
+        Object[] owner = new Object[1];
+        List<Object> value = new ArrayList<>();
+        value.add(owner);
+        owner[0] = value;
+        int fieldId = CollectionBreakpointStorage.getFieldId("test/Parent", "children");
+        CollectionBreakpointStorage.saveFieldModification(fieldId, owner, value, false);
+        Assert.assertSame(value, CollectionBreakpointStorage.getFieldModifications("test.Parent", "children", owner)[0]);
+        WeakReference<Object> ownerReference = new WeakReference<Object>(owner);
+        owner = null;
+        value = null;
+        assertCollected(ownerReference);
+    }
+
+    @Test
+    public void elementsAreHeldStronglyByDefault() throws Exception {
+        CollectionBreakpointStorage.init(new Properties());
+        Object collection = new Object();
+        CollectionBreakpointStorage.saveCollectionModification(collection, new StringBuilder("removed"), false);
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Assert.assertEquals("removed", String.valueOf(getElements(collection).get(0)));
+    }
+
+    @Test
+    public void oldestModificationsAreEvicted() throws Exception {
+        init(20);
+        Object collection = new Object();
+        for (int i = 0; i < 50; i++) {
+            CollectionBreakpointStorage.saveCollectionModification(collection, i, true);
+        }
+        Assert.assertEquals(30, CollectionBreakpointStorage.getEvictedCollectionModificationsCount(collection));
+        List<Object> expected = new ArrayList<>();
+        for (int i = 30; i < 50; i++) {
+            expected.add(i);
+        }
+        Assert.assertEquals(expected, getElements(collection));
+    }
+
+    @Test
+    public void stacksAreFoundBySequenceNumbersAfterEviction() throws Exception {
+        init(3);
+        Object collection = new Object();
+        for (int i = 0; i < 5; i++) {
+            CollectionBreakpointStorage.saveCollectionModification(collection, i, true);
+        }
+        Assert.assertEquals(Arrays.<Object>asList(2, 3, 4), getElements(collection));
+        Assert.assertEquals("", CollectionBreakpointStorage.getStack(collection, 0));
+        Assert.assertEquals("", CollectionBreakpointStorage.getStack(collection, 1));
+        Assert.assertNotEquals("", CollectionBreakpointStorage.getStack(collection, 2));
+        Assert.assertNotEquals("", CollectionBreakpointStorage.getStack(collection, 4));
+        try {
+            CollectionBreakpointStorage.getStack(collection, 5);
+            Assert.fail("the modification is not captured yet");
+        }
+        catch (IndexOutOfBoundsException ignored) {
+        }
+    }
+
+    @Test
+    public void fieldHistoryIsBoundedToo() throws Exception {
+        init(2);
+        Object owner = new Object();
+        int fieldId = CollectionBreakpointStorage.getFieldId("test/Owner", "bounded");
+        Object[] values = {new Object(), new Object(), new Object()};
+        for (Object value : values) {
+            CollectionBreakpointStorage.saveFieldModification(fieldId, owner, value, true);
+        }
+        Assert.assertEquals(1, CollectionBreakpointStorage.getEvictedFieldModificationsCount("test.Owner", "bounded", owner));
+        Assert.assertArrayEquals(Arrays.copyOfRange(values, 1, 3),
+                                 CollectionBreakpointStorage.getFieldModifications("test.Owner", "bounded", owner));
+        Assert.assertEquals("", CollectionBreakpointStorage.getStack("test.Owner", "bounded", owner, 0));
+        Assert.assertNotEquals("", CollectionBreakpointStorage.getStack("test.Owner", "bounded", owner, 2));
+    }
+
+    @Test
+    public void fieldIdsAreReused() throws Exception {
+        init(10);
+        int id = CollectionBreakpointStorage.getFieldId("test/Reused", "first");
+        Assert.assertEquals(id, CollectionBreakpointStorage.getFieldId("test/Reused", "first"));
+        Assert.assertNotEquals(id, CollectionBreakpointStorage.getFieldId("test/Reused", "second"));
+        Assert.assertNotEquals(id, CollectionBreakpointStorage.getFieldId("test/Other", "first"));
+
+        final int[] ids = new int[4];
+        Thread[] threads = new Thread[ids.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ids[index] = CollectionBreakpointStorage.getFieldId("test/Reused", "concurrent");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int threadId : ids) {
+            Assert.assertEquals(ids[0], threadId);
+        }
+
+        // modifications saved with the same id go to the same history
+        Object owner = new Object();
+        Object first = new Object();
+        Object second = new Object();
+        CollectionBreakpointStorage.saveFieldModification(id, owner, first, false);
+        CollectionBreakpointStorage.saveFieldModification(CollectionBreakpointStorage.getFieldId("test/Reused", "first"), owner, second, false);
+        Assert.assertArrayEquals(new Object[]{first, second},
+                                 CollectionBreakpointStorage.getFieldModifications("test.Reused", "first", owner));
+    }
+
+    @Test
+    public void pagesAreSelectedBySequenceNumbersAfterEviction() throws Exception {
+        init(5);
+        Object collection = new Object();
+        String[] elements = {"e0", "e1", "e2", "e3", "e4", "e5", "e6", "e7"};
+        for (String element : elements) {
+            CollectionBreakpointStorage.saveCollectionModification(collection, element, true);
+        }
+        Assert.assertEquals(Arrays.asList("5/3", "3:+e3", "4:+e4"), getPage(collection, 0, 2, null));
+        Assert.assertEquals(Arrays.asList("5/3", "5:+e5", "6:+e6"), getPage(collection, 5, 2, null));
+        Assert.assertEquals(Arrays.asList("5/3", "7:+e7"), getPage(collection, 7, 5, null));
+        Assert.assertEquals(Arrays.asList("5/3"), getPage(collection, 8, 5, null));
+    }
+
+    @Test
+    public void pagesAreFilteredByElementAfterEviction() throws Exception {
+        init(5);
+        Object collection = new Object();
+        String[] elements = {"a", "b", "a", "c", "a", "b", "a"};
+        for (String element : elements) {
+            CollectionBreakpointStorage.saveCollectionModification(collection, element, true);
+        }
+        CollectionBreakpointStorage.saveCollectionModification(collection, CollectionBreakpointInstrumentor.createPair("a", "v"), false);
+        // the first three modifications are evicted
+        Assert.assertEquals(Arrays.asList("5/3", "4:+a", "6:+a"), getPage(collection, 0, 2, "a"));
+        Assert.assertEquals(Arrays.asList("5/3", "7:-a=v"), getPage(collection, 7, 2, "a"));
+        Assert.assertEquals(Arrays.asList("5/3", "5:+b"), getPage(collection, 0, 2, "b"));
+        Assert.assertEquals(Arrays.asList("5/3"), getPage(collection, 0, 2, "missing"));
+    }
+
+    private static void initWeakElements() {
+        Properties properties = new Properties();
+        properties.setProperty("collectionBreakpointsWeakElements", "true");
+        CollectionBreakpointStorage.init(properties);
+    }
+
+    private static void assertCollected(WeakReference<Object> reference) throws InterruptedException {
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(reference.get());
+    }
+
+    private static void init(int historySize) {
+        Properties properties = new Properties();
+        properties.setProperty("collectionBreakpointsHistorySize", String.valueOf(historySize));
+        CollectionBreakpointStorage.init(properties);
+    }
+
+    // the size and the evicted count of the history, then the sequence number, the kind and the element of every modification
+    private static List<String> getPage(Object collection, long offset, int count, Object elementFilter) throws Exception {
+        Object[] page = CollectionBreakpointStorage.getCollectionModificationsPage(collection, offset, count, elementFilter);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(((String)page[0]).getBytes(StandardCharsets.ISO_8859_1)));
+        List<String> result = new ArrayList<>();
+        result.add(input.readInt() + "/" + input.readLong());
+        int modificationsCount = input.readInt();
+        Assert.assertEquals(page.length - 1, modificationsCount);
+        for (int i = 0; i < modificationsCount; i++) {
+            long sequenceNumber = input.readLong();
+            boolean isAddition = input.readBoolean();
+            int stackSize = input.readInt();
+            for (int j = 0; j < stackSize; j++) {
+                if (input.readBoolean()) {
+                    input.readUTF();
+                    input.readUTF();
+                    input.readInt();
+                }
+            }
+            Object element = page[i + 1];
+            if (element instanceof Map.Entry) {
+                element = ((Map.Entry<?, ?>)element).getKey() + "=" + ((Map.Entry<?, ?>)element).getValue();
+            }
+            result.add(sequenceNumber + ":" + (isAddition ? "+" : "-") + element);
+        }
+        Assert.assertEquals(0, input.available());
+        return result;
+    }
+
+    private static List<Object> getElements(Object collection) throws Exception {
+        List<Object> result = new ArrayList<>();
+        for (Object info : CollectionBreakpointStorage.getCollectionModifications(collection)) {
+            Method getElement = info.getClass().getDeclaredMethod("getElement");
+            getElement.setAccessible(true);
+            result.add(getElement.invoke(info));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+package com.intellij.rt.debugger.agent;
+
+public class InstrumentationBreakpointHitOverhead {
+
+    private static int ourHits;
+
+    // The shape of a fragment generated for a logging breakpoint: the guard around the logging expression
+    private static void fragment(int value) {
+        if (InstrumentationBreakpointTransformer.enterBreakpointCheckInternal()) {
+            return;
+        }
+        try {
+            ourHits += value;
+        } finally {
+            InstrumentationBreakpointTransformer.checkIsDone();
+        }
+    }
+
+    private static long measure(int repeats) {
+        long startNs = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            fragment(i);
+        }
+        return System.nanoTime() - startNs;
+    }
+
+    public static void main(String[] args) {
+        InstrumentationBreakpointTransformer.isUnmutedState = true;
+        int repeats = 100_000_000;
+        // warm up
+        measure(repeats);
+        long totalNs = measure(repeats);
+        System.out.println(ourHits);
+        double hitTimeNs = (double) totalNs / repeats;
+        // 7 ns, it was 12 ns with the boxed thread local depth
+        System.out.println("Instrumented breakpoint hit overhead: " + Math.round(hitTimeNs) + " ns");
+    }
+}
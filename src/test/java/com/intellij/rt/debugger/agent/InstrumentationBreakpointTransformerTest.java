@@ -5,10 +5,20 @@ import org.jetbrains.capture.org.objectweb.asm.ClassWriter;
 import org.jetbrains.capture.org.objectweb.asm.Label;
 import org.jetbrains.capture.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.capture.org.objectweb.asm.Opcodes;
+import org.jetbrains.capture.org.objectweb.asm.Type;
 import org.jetbrains.capture.org.objectweb.asm.commons.LocalVariablesSorter;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class InstrumentationBreakpointTransformerTest {
     @Test
     public void breakpointInstrumentationReaderExpandsFramesForLocalVariablesSorter() {
@@ -32,6 +42,328 @@ public class InstrumentationBreakpointTransformerTest {
         Assert.assertNotNull(transformed);
     }
 
+    @Test
+    public void methodsWithoutBreakpointsAreCopiedWithoutComputingFrames() {
+        byte[] classBytes = createClassWithUnloadableMerge("test/Merge");
+
+        InstrumentationBreakpointTransformer.addBreakpointClass("test/Merge");
+        InstrumentationBreakpointTransformer.setInstrumentationState("test/Merge", new String[][]{
+                {"test/Merge", "bp", "11", "test/Fragment7", "entry", "(II)V", "x", "y"}
+        });
+
+        // Computing the frames of `pick` would load missing/A and missing/B
+        byte[] transformed = new InstrumentationBreakpointTransformer.BreakpointInstrumentalist().transform(
+                getClass().getClassLoader(), "test/Merge", null, null, classBytes);
+
+        Assert.assertNotNull(transformed);
+        InstrumentationBreakpointTransformer.ClassInstrumentationState state = InstrumentationBreakpointTransformer.getInstrumentationState("test/Merge");
+        Assert.assertNull(state.failureReport);
+        Assert.assertArrayEquals(new int[]{7}, state.successfullyInstalled);
+    }
+
+    @Test
+    public void throwingFragmentReturnsToInstrumentedLine() throws Exception {
+        final byte[] classBytes = createClassWithTwoLines("test/Throwing");
+        String fragmentPrefix = getInternalClsName(InstrumentationBreakpointTransformerTest.class) + "$ThrowingFragment";
+
+        InstrumentationBreakpointTransformer.addBreakpointClass("test/Throwing");
+        InstrumentationBreakpointTransformer.setInstrumentationState("test/Throwing", new String[][]{
+                {"test/Throwing", "run", "11", fragmentPrefix + "41", "entry", "(II)V", "x", "y"},
+                {"test/Throwing", "run", "12", fragmentPrefix + "42", "entry", "(III)V", "x", "y", "z"}
+        });
+        final byte[] transformed = new InstrumentationBreakpointTransformer.BreakpointInstrumentalist().transform(
+                getClass().getClassLoader(), "test/Throwing", null, null, classBytes);
+        Assert.assertNotNull(transformed);
+        Assert.assertArrayEquals(new int[]{41, 42}, InstrumentationBreakpointTransformer.getInstrumentationState("test/Throwing").successfullyInstalled);
+
+        Class<?> instrumented = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass("test.Throwing", transformed, 0, transformed.length);
+            }
+        }.define();
+        ThrowingFragment41.ourCalls = 0;
+        ThrowingFragment42.ourCalls = 0;
+        Assert.assertEquals(6, instrumented.getMethod("run", int.class).invoke(null, 1));
+        Assert.assertEquals(1, ThrowingFragment41.ourCalls);
+        Assert.assertEquals(1, ThrowingFragment42.ourCalls);
+    }
+
+    @Test
+    public void hitFilterSkipsPassCountAndCallsEveryNthHit() {
+        Assert.assertTrue(InstrumentationBreakpointTransformer.shouldCallFragment(1000));
+
+        InstrumentationBreakpointTransformer.setHitFilter(1000, 2, 3, 0);
+        try {
+            Assert.assertEquals("----+--+--+", getHits(1000, 11));
+        } finally {
+            InstrumentationBreakpointTransformer.setHitFilter(1000, 0, 0, 0);
+        }
+        Assert.assertEquals("+++", getHits(1000, 3));
+    }
+
+    @Test
+    public void hitFilterLimitsRate() {
+        // one hit per 500 ms, the bucket allows a burst of one second of hits
+        InstrumentationBreakpointTransformer.setHitFilter(1001, 0, 0, 2);
+        try {
+            Assert.assertEquals("++----------", getHits(1001, 12));
+        } finally {
+            InstrumentationBreakpointTransformer.setHitFilter(1001, 0, 0, 0);
+        }
+    }
+
+    @Test
+    public void replacingHitFilterResetsItsCounts() {
+        InstrumentationBreakpointTransformer.setHitFilter(1002, 0, 2, 0);
+        try {
+            Assert.assertEquals("-+-", getHits(1002, 3));
+            InstrumentationBreakpointTransformer.setHitFilter(1002, 0, 2, 0);
+            Assert.assertEquals("-+", getHits(1002, 2));
+            InstrumentationBreakpointTransformer.setHitFilter(1002, 1, 0, 0);
+            Assert.assertEquals("-++", getHits(1002, 3));
+        } finally {
+            InstrumentationBreakpointTransformer.setHitFilter(1002, 0, 0, 0);
+        }
+    }
+
+    @Test
+    public void verificationModeIsParsed() {
+        Assert.assertEquals(InstrumentationBreakpointTransformer.VERIFY_REGIONS, InstrumentationBreakpointTransformer.parseVerificationMode("regions"));
+        Assert.assertEquals(InstrumentationBreakpointTransformer.VERIFY_METHODS, InstrumentationBreakpointTransformer.parseVerificationMode("methods"));
+        Assert.assertEquals(InstrumentationBreakpointTransformer.VERIFY_ALL, InstrumentationBreakpointTransformer.parseVerificationMode("full"));
+        Assert.assertEquals(InstrumentationBreakpointTransformer.VERIFY_METHODS, InstrumentationBreakpointTransformer.parseVerificationMode(null));
+        Assert.assertEquals(InstrumentationBreakpointTransformer.VERIFY_METHODS, InstrumentationBreakpointTransformer.parseVerificationMode("unknown"));
+    }
+
+    @Test
+    public void instrumentedRegionCheckAcceptsMatchingArguments() {
+        InstrumentationBreakpointTransformer.checkInstrumentedRegion(createMappingInfo("(IZLjava/lang/String;)V", Type.INT_TYPE, Type.INT_TYPE, Type.getType(Object.class)));
+        InstrumentationBreakpointTransformer.checkInstrumentedRegion(createMappingInfo("(J[I)V", Type.LONG_TYPE, Type.getType(int[].class)));
+    }
+
+    @Test
+    public void instrumentedRegionCheckRejectsNonVoidFragment() {
+        assertRegionRejected(createMappingInfo("(I)I", Type.INT_TYPE), "should return void");
+    }
+
+    @Test
+    public void instrumentedRegionCheckRejectsMismatchedArguments() {
+        assertRegionRejected(createMappingInfo("(II)V", Type.INT_TYPE), "expects 2 arguments, got 1");
+        assertRegionRejected(createMappingInfo("(I)V", Type.LONG_TYPE), "cannot be passed as I");
+        assertRegionRejected(createMappingInfo("(Ljava/lang/Object;)V", Type.INT_TYPE), "cannot be passed as Ljava/lang/Object;");
+        assertRegionRejected(createMappingInfo("(D)V", Type.FLOAT_TYPE), "cannot be passed as D");
+    }
+
+    @Test
+    public void installBreakpointsReportsMalformedRows() {
+        InstrumentationBreakpointTransformer.InstallationResult result = InstrumentationBreakpointTransformer.installBreakpoints(new String[][]{
+                {"test/Short", "m", "1", "test/Fragment20", "entry"},
+                {"test/BadLine", "m", "first", "test/Fragment21", "entry", "()V"},
+                {"test/BadArguments", "m", "1", "test/Fragment22", "entry", "(I)V"},
+                {"test/NotLoaded", "m", "1", "test/Fragment23", "entry", "(I)V", "x"},
+        });
+
+        Assert.assertArrayEquals(new int[]{20, 21, 22}, result.failedInstrumentationIds);
+        Assert.assertArrayEquals(new int[]{23}, result.pendingInstrumentationIds);
+        Assert.assertArrayEquals(new int[0], result.successfullyInstalled);
+        Assert.assertEquals(3, result.failureReports.length);
+        Assert.assertTrue(result.failureReports[0].startsWith("test/Short: "));
+        Assert.assertTrue(result.failureReports[1].startsWith("test/BadLine: "));
+        Assert.assertTrue(result.failureReports[2].startsWith("test/BadArguments: "));
+        Assert.assertNull(InstrumentationBreakpointTransformer.getInstrumentationState("test/Short"));
+        Assert.assertTrue(InstrumentationBreakpointTransformer.getInstrumentationState("test/NotLoaded").infoTableProvided);
+    }
+
+    @Test
+    public void installBreakpointsSplitsInstalledFailedAndPendingIds() throws Exception {
+        final byte[] classBytes = createClassWithUnloadableMerge("test/Install");
+        final Class<?> loadedClass = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass("test.Install", classBytes, 0, classBytes.length);
+            }
+        }.define();
+        final InstrumentationBreakpointTransformer.BreakpointInstrumentalist transformer = new InstrumentationBreakpointTransformer.BreakpointInstrumentalist();
+        Instrumentation instrumentation = (Instrumentation)Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{Instrumentation.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getAllLoadedClasses")) {
+                            return new Class<?>[]{loadedClass};
+                        }
+                        if (method.getName().equals("isModifiableClass")) {
+                            return true;
+                        }
+                        if (method.getName().equals("retransformClasses")) {
+                            Assert.assertArrayEquals(new Object[]{loadedClass}, (Object[])args[0]);
+                            Assert.assertNotNull(transformer.transform(loadedClass.getClassLoader(), "test/Install", loadedClass, null, classBytes));
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        Field instrumentationField = InstrumentationBreakpointTransformer.class.getDeclaredField("myInstrumentation");
+        instrumentationField.setAccessible(true);
+        instrumentationField.set(null, instrumentation);
+        try {
+            InstrumentationBreakpointTransformer.InstallationResult result = InstrumentationBreakpointTransformer.installBreakpoints(new String[][]{
+                    {"test/Install", "bp", "11", "test/Fragment31", "entry", "(II)V", "x", "y"},
+                    {"test/Install", "bp", "99", "test/Fragment32", "entry", "()V"},
+                    {"test/NotLoadedYet", "bp", "11", "test/Fragment33", "entry", "()V"},
+            });
+
+            Assert.assertArrayEquals(new int[]{31}, result.successfullyInstalled);
+            Assert.assertArrayEquals(new int[]{32}, result.failedInstrumentationIds);
+            Assert.assertArrayEquals(new int[]{33}, result.pendingInstrumentationIds);
+            Assert.assertArrayEquals(new int[]{31}, InstrumentationBreakpointTransformer.getInstrumentationState("test/Install").successfullyInstalled);
+            // the table is used by the install retransformation only, the later ones request the info
+            Assert.assertFalse(InstrumentationBreakpointTransformer.getInstrumentationState("test/Install").infoTableProvided);
+            Assert.assertTrue(InstrumentationBreakpointTransformer.getInstrumentationState("test/NotLoadedYet").infoTableProvided);
+        } finally {
+            instrumentationField.set(null, null);
+        }
+    }
+
+    private static byte[] createClassWithUnloadableMerge(String className) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+
+        MethodVisitor pick = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "pick", "(Z)Ljava/lang/Object;", null, null);
+        pick.visitCode();
+        Label elseLabel = new Label();
+        Label endLabel = new Label();
+        pick.visitVarInsn(Opcodes.ILOAD, 0);
+        pick.visitJumpInsn(Opcodes.IFEQ, elseLabel);
+        pick.visitTypeInsn(Opcodes.NEW, "missing/A");
+        pick.visitInsn(Opcodes.DUP);
+        pick.visitMethodInsn(Opcodes.INVOKESPECIAL, "missing/A", "<init>", "()V", false);
+        pick.visitJumpInsn(Opcodes.GOTO, endLabel);
+        pick.visitLabel(elseLabel);
+        pick.visitTypeInsn(Opcodes.NEW, "missing/B");
+        pick.visitInsn(Opcodes.DUP);
+        pick.visitMethodInsn(Opcodes.INVOKESPECIAL, "missing/B", "<init>", "()V", false);
+        pick.visitLabel(endLabel);
+        pick.visitInsn(Opcodes.ARETURN);
+        pick.visitMaxs(0, 0);
+        pick.visitEnd();
+
+        MethodVisitor bp = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "bp", "(I)V", null, null);
+        bp.visitCode();
+        Label start = new Label();
+        Label secondLine = new Label();
+        Label end = new Label();
+        bp.visitLabel(start);
+        bp.visitLineNumber(10, start);
+        bp.visitVarInsn(Opcodes.ILOAD, 0);
+        bp.visitInsn(Opcodes.ICONST_1);
+        bp.visitInsn(Opcodes.IADD);
+        bp.visitVarInsn(Opcodes.ISTORE, 1);
+        bp.visitLabel(secondLine);
+        bp.visitLineNumber(11, secondLine);
+        bp.visitInsn(Opcodes.RETURN);
+        bp.visitLabel(end);
+        bp.visitLocalVariable("x", "I", null, start, end, 0);
+        bp.visitLocalVariable("y", "I", null, secondLine, end, 1);
+        bp.visitMaxs(0, 0);
+        bp.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static InstrumentationBreakpointMappingInfo createMappingInfo(String methodSignature, Type... argumentTypes) {
+        List<String> argumentNames = new ArrayList<>();
+        for (int i = 0; i < argumentTypes.length; i++) {
+            argumentNames.add("a" + i);
+        }
+        InstrumentationBreakpointInfo info = new InstrumentationBreakpointInfo(50, 10, "test/Fragment50", "entry", methodSignature, argumentNames);
+        return new InstrumentationBreakpointMappingInfo(info, new ArrayList<ArgumentGetter>(), Arrays.asList(argumentTypes));
+    }
+
+    private static void assertRegionRejected(InstrumentationBreakpointMappingInfo argumentMapping, String message) {
+        try {
+            InstrumentationBreakpointTransformer.checkInstrumentedRegion(argumentMapping);
+            Assert.fail("Expected the region check to fail with: " + message);
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static String getHits(int instrumentationId, int count) {
+        StringBuilder hits = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            hits.append(InstrumentationBreakpointTransformer.shouldCallFragment(instrumentationId) ? '+' : '-');
+        }
+        return hits.toString();
+    }
+
+    // static int run(int x) { int y = x + 1; int z = y * 2; return z + y; } on lines 10, 11 and 12
+    private static byte[] createClassWithTwoLines(String className) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+
+        MethodVisitor run = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "(I)I", null, null);
+        run.visitCode();
+        Label start = new Label();
+        Label secondLine = new Label();
+        Label thirdLine = new Label();
+        Label end = new Label();
+        run.visitLabel(start);
+        run.visitLineNumber(10, start);
+        run.visitVarInsn(Opcodes.ILOAD, 0);
+        run.visitInsn(Opcodes.ICONST_1);
+        run.visitInsn(Opcodes.IADD);
+        run.visitVarInsn(Opcodes.ISTORE, 1);
+        run.visitLabel(secondLine);
+        run.visitLineNumber(11, secondLine);
+        run.visitVarInsn(Opcodes.ILOAD, 1);
+        run.visitInsn(Opcodes.ICONST_2);
+        run.visitInsn(Opcodes.IMUL);
+        run.visitVarInsn(Opcodes.ISTORE, 2);
+        run.visitLabel(thirdLine);
+        run.visitLineNumber(12, thirdLine);
+        run.visitVarInsn(Opcodes.ILOAD, 2);
+        run.visitVarInsn(Opcodes.ILOAD, 1);
+        run.visitInsn(Opcodes.IADD);
+        run.visitInsn(Opcodes.IRETURN);
+        run.visitLabel(end);
+        run.visitLocalVariable("x", "I", null, start, end, 0);
+        run.visitLocalVariable("y", "I", null, secondLine, end, 1);
+        run.visitLocalVariable("z", "I", null, thirdLine, end, 2);
+        run.visitMaxs(0, 0);
+        run.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static String getInternalClsName(Class<?> cls) {
+        return cls.getName().replace('.', '/');
+    }
+
+    public static class ThrowingFragment41 {
+        static int ourCalls;
+
+        public static void entry(int x, int y) {
+            ourCalls++;
+            throw new IllegalStateException("fragment at line 11");
+        }
+    }
+
+    public static class ThrowingFragment42 {
+        static int ourCalls;
+
+        public static void entry(int x, int y, int z) {
+            ourCalls++;
+            throw new IllegalStateException("fragment at line 12");
+        }
+    }
+
     private static void assertFailsWithoutExpandedFrames(byte[] classBytes) {
         ClassTransformer transformer = new ClassTransformer(
                 "test/Sample",
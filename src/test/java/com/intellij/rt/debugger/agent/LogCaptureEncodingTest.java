@@ -9,11 +9,15 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 public class LogCaptureEncodingTest {
@@ -122,6 +126,156 @@ public class LogCaptureEncodingTest {
         }
     }
 
+    @Test
+    public void writesOfOneLogRecordShareStacks() throws Exception {
+        properties.put(LogCaptureStorage.BATCHING_MAX_EVENTS_PROPERTY, "3"); // 4 is a signal to flush
+        LogCaptureStorage.init(properties, true);
+
+        LogCaptureStorage.logRecordStarted();
+        try {
+            captureStdout("record\n");
+            captureStdoutFromAnotherFrame("record\n");
+        } finally {
+            LogCaptureStorage.logRecordFinished();
+        }
+        captureStdout("first\n");
+        captureStdoutFromAnotherFrame("second\n");
+        assertEquals(1, LogCaptureStorage.outputWrittenDumpForTests.size());
+
+        try (DataInputStream is = openDump(0)) {
+            assertEquals(4, is.readInt()); // count
+            List<StackTraceElement> firstRecordWrite = readAndCheckStdoutEvent(0, "record\n", is);
+            List<StackTraceElement> secondRecordWrite = readAndCheckStdoutEvent(1, "record\n", is);
+            List<StackTraceElement> firstWrite = readAndCheckStdoutEvent(2, "first\n", is);
+            List<StackTraceElement> secondWrite = readAndCheckStdoutEvent(3, "second\n", is);
+            assertEquals(firstRecordWrite, secondRecordWrite);
+            assertNotEquals(firstWrite, secondWrite);
+        }
+    }
+
+    @Test
+    public void spillsEventPayloadsToSegments() throws Exception {
+        properties.put(LogCaptureStorage.BATCHING_MAX_EVENTS_PROPERTY, "2"); // 3 is a signal to flush
+        properties.put(LogCaptureStorage.SPILL_ENABLED_PROPERTY, "true");
+        properties.put(LogCaptureStorage.SPILL_SEGMENT_SIZE_PROPERTY, String.valueOf(64 * 1024));
+        LogCaptureStorage.init(properties, true);
+
+        char[] tooLargeForSegment = new char[100 * 1024];
+        Arrays.fill(tooLargeForSegment, 'x');
+        String largeMessage = new String(tooLargeForSegment) + "\n";
+
+        captureStdout("spilled stdout\n");
+        captureStdout(largeMessage);
+        LogCaptureStorage.loggingBreakpointHit(77, "spilled log");
+        assertEquals(1, LogCaptureStorage.outputWrittenDumpForTests.size());
+
+        try (DataInputStream is = openDump(0)) {
+            assertEquals(3, is.readInt()); // count
+            readAndCheckStdoutEvent(0, "spilled stdout\n", is);
+            readAndCheckStdoutEvent(1, largeMessage, is);
+            readAndCheckLoggingBreakpointEvent(2, 77, "spilled log", is);
+        }
+    }
+
+    @Test
+    public void coalescesFragmentsOfOneLine() throws Exception {
+        properties.put(LogCaptureStorage.BATCHING_MAX_EVENTS_PROPERTY, "2"); // 3 is a signal to flush
+        properties.put(LogCaptureStorage.COALESCING_WINDOW_PROPERTY, "999999999"); // never expires
+        LogCaptureStorage.init(properties, true);
+
+        captureStdout("first");
+        captureStdout(" line");
+        captureStdout("\n");
+        captureStdout("second line\n");
+        captureStdout("unterminated");
+        LogCaptureStorage.capture(FileDescriptor.err, "error\n".getBytes(StandardCharsets.UTF_8));
+        // the error line waits for the unterminated line written before it
+        assertEquals(0, LogCaptureStorage.outputWrittenDumpForTests.size());
+        captureStdout(" line\n");
+        assertEquals(1, LogCaptureStorage.outputWrittenDumpForTests.size());
+
+        try (DataInputStream is = openDump(0)) {
+            assertEquals(4, is.readInt()); // count
+            readAndCheckStdoutEvent(0, "first line\n", is);
+            readAndCheckStdoutEvent(1, "second line\n", is);
+            readAndCheckStdoutEvent(2, "unterminated line\n", is);
+            readAndCheckStdoutEvent(3, "error\n", is);
+        }
+    }
+
+    @Test
+    public void keepsFragmentsOfOtherThreadsPendingAndOrdersEventsByFirstWrite() throws Exception {
+        properties.put(LogCaptureStorage.BATCHING_MAX_EVENTS_PROPERTY, "1"); // 2 is a signal to flush
+        properties.put(LogCaptureStorage.COALESCING_WINDOW_PROPERTY, "999999999"); // never expires
+        LogCaptureStorage.init(properties, true);
+
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            otherThread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    captureStdout("other");
+                }
+            }).get();
+            captureStdout("this thread\n");
+            captureStdout("and again\n");
+            assertEquals(0, LogCaptureStorage.outputWrittenDumpForTests.size());
+            otherThread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    captureStdout(" thread\n");
+                }
+            }).get();
+        } finally {
+            otherThread.shutdown();
+        }
+        assertEquals(1, LogCaptureStorage.outputWrittenDumpForTests.size());
+
+        try (DataInputStream is = openDump(0)) {
+            assertEquals(3, is.readInt()); // count
+            readAndCheckStdoutEvent(0, "other thread\n", is);
+            readAndCheckStdoutEvent(1, "this thread\n", is);
+            readAndCheckStdoutEvent(2, "and again\n", is);
+        }
+    }
+
+    @Test
+    public void formatsStructuredLoggingBreakpointEventsOnFlush() throws Exception {
+        properties.put(LogCaptureStorage.BATCHING_MAX_EVENTS_PROPERTY, "2"); // 3 is a signal to flush
+        LogCaptureStorage.init(properties, false);
+
+        LogCaptureStorage.registerLoggingBreakpointTemplate(91, new String[]{"i = ", ", name = ", "!"});
+        StringBuilder mutable = new StringBuilder("before");
+        LogCaptureStorage.loggingBreakpointHitWithArguments(91, new Object[]{42, "x"});
+        LogCaptureStorage.loggingBreakpointHitWithArguments(92, new Object[]{1.5, mutable, null});
+        mutable.append(" and after");
+        // the hits keep the template they were recorded with
+        LogCaptureStorage.registerLoggingBreakpointTemplate(91, new String[]{"changed "});
+        LogCaptureStorage.loggingBreakpointHit(93, "plain");
+        assertEquals(1, LogCaptureStorage.outputWrittenDumpForTests.size());
+
+        try (DataInputStream is = openDump(0)) {
+            assertEquals(3, is.readInt()); // count
+            readAndCheckLoggingBreakpointEvent(0, 91, "i = 42, name = x!", is);
+            readAndCheckLoggingBreakpointEvent(1, 92, "1.5 before null", is);
+            readAndCheckLoggingBreakpointEvent(2, 93, "plain", is);
+        }
+    }
+
+    private static void captureStdout(String message) {
+        LogCaptureStorage.capture(FileDescriptor.out, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Frames of the agent package are trimmed, so use a JDK frame to get a different top of the stack.
+    private static void captureStdoutFromAnotherFrame(final String message) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureStdout(message);
+            }
+        }).run();
+    }
+
     static DataInputStream openDump(int index) throws IOException {
         String output = LogCaptureStorage.outputWrittenDumpForTests.get(index);
         return new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.ISO_8859_1))));
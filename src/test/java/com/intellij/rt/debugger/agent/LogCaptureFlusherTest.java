@@ -0,0 +1,43 @@
+package com.intellij.rt.debugger.agent;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.intellij.rt.debugger.agent.LogCaptureStorage.BatchFlusher.MIN_WINDOW_NS;
+import static com.intellij.rt.debugger.agent.LogCaptureStorage.BatchFlusher.computeWindow;
+import static org.junit.Assert.assertEquals;
+
+public class LogCaptureFlusherTest {
+    private static final long MAX_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void usesMaxWindowWithoutEvents() {
+        assertEquals(MAX_WINDOW_NS, computeWindow(0, 0, 100, MAX_WINDOW_NS));
+    }
+
+    @Test
+    public void growsWindowUpToMaxUnderLowLoad() {
+        double oneEventPerSecond = 1.0 / TimeUnit.SECONDS.toNanos(1);
+        assertEquals(MAX_WINDOW_NS, computeWindow(oneEventPerSecond, 0, 100, MAX_WINDOW_NS));
+    }
+
+    @Test
+    public void shrinksWindowToCollectHalfOfMaxBatch() {
+        double tenEventsPerMillisecond = 10.0 / TimeUnit.MILLISECONDS.toNanos(1);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), computeWindow(tenEventsPerMillisecond, 0, 100, MAX_WINDOW_NS));
+    }
+
+    @Test
+    public void doesNotShrinkWindowBelowMinimum() {
+        double eventPerNanosecond = 1.0;
+        assertEquals(MIN_WINDOW_NS, computeWindow(eventPerNanosecond, 0, 100, MAX_WINDOW_NS));
+    }
+
+    @Test
+    public void amortizesPackingLatency() {
+        double tenEventsPerMillisecond = 10.0 / TimeUnit.MILLISECONDS.toNanos(1);
+        long packNs = TimeUnit.MILLISECONDS.toNanos(3);
+        assertEquals(4 * packNs, computeWindow(tenEventsPerMillisecond, packNs, 100, MAX_WINDOW_NS));
+    }
+}
@@ -0,0 +1,66 @@
+package com.intellij.rt.debugger.agent;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class LogCaptureSpillTest {
+    private static final int SEGMENT_SIZE = 16;
+
+    @Test
+    public void segmentsAreReusedOnceFlushed() throws Exception {
+        LogCaptureSpill spill = LogCaptureSpill.create(SEGMENT_SIZE);
+        List<LogCaptureStorage.Event> events = new ArrayList<>();
+        // every payload takes a segment of its own
+        for (int i = 0; i < LogCaptureSpill.MAX_SEGMENTS; i++) {
+            LogCaptureStorage.Event event = spill.spill(i, LogCaptureStorage.Event.STD_OUTPUT_TYPE, payload("payload " + i));
+            assertNotNull(event);
+            events.add(event);
+        }
+        // all segments wait for the flush, the payload stays on the heap
+        assertNull(spill.spill(10, LogCaptureStorage.Event.STD_OUTPUT_TYPE, payload("payload 10")));
+
+        events.get(1).release();
+        LogCaptureStorage.Event reused = spill.spill(11, LogCaptureStorage.Event.STD_OUTPUT_TYPE, payload("payload 11"));
+        assertNotNull(reused);
+        assertEquals("payload 11", read(reused));
+        for (int i = 0; i < LogCaptureSpill.MAX_SEGMENTS; i++) {
+            if (i != 1) {
+                assertEquals("payload " + i, read(events.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void tooLargePayloadsStayOnHeap() throws Exception {
+        LogCaptureSpill spill = LogCaptureSpill.create(SEGMENT_SIZE);
+        assertNull(spill.spill(0, LogCaptureStorage.Event.STD_OUTPUT_TYPE, new byte[SEGMENT_SIZE + 1]));
+    }
+
+    private static byte[] payload(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        // longer than a half of the segment
+        assertTrue(bytes.length > SEGMENT_SIZE / 2 && bytes.length <= SEGMENT_SIZE);
+        return bytes;
+    }
+
+    private static String read(LogCaptureStorage.Event event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            event.writePayload(dos);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -17,6 +17,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
+import static com.intellij.rt.debugger.agent.CaptureAgent.getInternalClsName;
+
 public class LogCaptureTransformerTest {
     private static final String WRITE_DESCRIPTOR = "([BII)V";
     private static final String TEST_FILE_OUTPUT_STREAM = "test/InstrumentedFileOutputStream";
@@ -84,6 +86,38 @@ public class LogCaptureTransformerTest {
         Assert.assertTrue("top stack frame should have a real line number: " + topFrame, topFrame.getLineNumber() > 0);
     }
 
+    @Test
+    public void wrapsLogRecordMethodIntoLogRecordScope() throws IOException {
+        String loggerClassName = getInternalClsName(java.util.logging.Logger.class);
+        byte[] transformed = new LogCaptureTransformer(true).transform(
+                LogCaptureTransformerTest.class.getClassLoader(),
+                loggerClassName,
+                null,
+                null,
+                readClass(java.util.logging.Logger.class)
+        );
+        Assert.assertNotNull(transformed);
+
+        String logRecordMethod = LogCaptureTransformer.LOG_RECORD_METHODS.get(loggerClassName);
+        MethodNode log = findMethod(transformed, logRecordMethod);
+        Assert.assertEquals(0, indexOfLogCaptureStorageCall(log, "logRecordStarted"));
+        Assert.assertTrue("scope should be closed", indexOfLogCaptureStorageCall(log, "logRecordFinished") > 0);
+        TryCatchBlockNode finallyBlock = log.tryCatchBlocks.get(log.tryCatchBlocks.size() - 1);
+        Assert.assertNull("scope should be closed on any exception", finallyBlock.type);
+    }
+
+    @Test
+    public void doesNotTransformLogRecordMethodsWhenDisabled() throws IOException {
+        byte[] transformed = new LogCaptureTransformer(false).transform(
+                LogCaptureTransformerTest.class.getClassLoader(),
+                getInternalClsName(java.util.logging.Logger.class),
+                null,
+                null,
+                readClass(java.util.logging.Logger.class)
+        );
+        Assert.assertNull(transformed);
+    }
+
     private static MethodNode transformWriteMethod(byte[] classBytes) {
         byte[] transformed = transformFileOutputStreamClass(classBytes);
 
@@ -92,7 +126,7 @@ public class LogCaptureTransformerTest {
     }
 
     private static byte[] transformFileOutputStreamClass(byte[] classBytes) {
-        return new LogCaptureTransformer().transform(
+        return new LogCaptureTransformer(false).transform(
                 LogCaptureTransformerTest.class.getClassLoader(),
                 LogCaptureTransformer.CLASS_NAME,
                 null,
@@ -110,8 +144,12 @@ public class LogCaptureTransformerTest {
     }
 
     private static byte[] readFileOutputStreamClass() throws IOException {
-        InputStream stream = FileOutputStream.class.getResourceAsStream("FileOutputStream.class");
-        Assert.assertNotNull("FileOutputStream bytecode should be available", stream);
+        return readClass(FileOutputStream.class);
+    }
+
+    private static byte[] readClass(Class<?> cls) throws IOException {
+        InputStream stream = cls.getResourceAsStream(cls.getSimpleName() + ".class");
+        Assert.assertNotNull(cls.getSimpleName() + " bytecode should be available", stream);
         try {
             ByteArrayOutputStream result = new ByteArrayOutputStream();
             byte[] buffer = new byte[8192];
@@ -205,17 +243,34 @@ public class LogCaptureTransformerTest {
     }
 
     private static MethodNode findWriteMethod(byte[] classBytes) {
+        return findMethod(classBytes, "write" + WRITE_DESCRIPTOR);
+    }
+
+    private static MethodNode findMethod(byte[] classBytes, String nameAndDescriptor) {
         ClassNode classNode = new ClassNode();
         new ClassReader(classBytes).accept(classNode, 0);
         for (MethodNode method : classNode.methods) {
-            if ("write".equals(method.name) && WRITE_DESCRIPTOR.equals(method.desc)) {
+            if (nameAndDescriptor.equals(method.name + method.desc)) {
                 return method;
             }
         }
-        Assert.fail("write method was not found");
+        Assert.fail(nameAndDescriptor + " method was not found");
         return null;
     }
 
+    private static int indexOfLogCaptureStorageCall(MethodNode method, String name) {
+        for (int i = 0; i < method.instructions.size(); i++) {
+            AbstractInsnNode instruction = method.instructions.get(i);
+            if (instruction instanceof MethodInsnNode) {
+                MethodInsnNode methodInsnNode = (MethodInsnNode) instruction;
+                if (getInternalLogCaptureStorageName().equals(methodInsnNode.owner) && name.equals(methodInsnNode.name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
     private static int indexOfFirstLineNumber(MethodNode method) {
         for (int i = 0; i < method.instructions.size(); i++) {
             if (method.instructions.get(i) instanceof LineNumberNode) {
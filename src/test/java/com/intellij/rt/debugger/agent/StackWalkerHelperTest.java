@@ -0,0 +1,74 @@
+package com.intellij.rt.debugger.agent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class StackWalkerHelperTest {
+    @Test
+    public void returnsTopFramesFollowingAgentFrames() {
+        if (!StackWalkerHelper.isAvailable()) return; // Java 8
+
+        final List<Object> frames = new ArrayList<>();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                frames.addAll(StackWalkerHelper.getTopFrames(3));
+            }
+        }).run();
+        assertEquals(3, frames.size());
+        for (Object frame : frames) {
+            StackTraceElement element = StackWalkerHelper.toStackTraceElement(frame);
+            assertEquals(element.getClassName(), StackWalkerHelper.getClassName(frame));
+            assertEquals(element.getMethodName(), StackWalkerHelper.getMethodName(frame));
+        }
+        // This test is in the agent package too, so the runnable frame is skipped.
+        assertEquals("java.lang.Thread", StackWalkerHelper.getClassName(frames.get(0)));
+        assertEquals("run", StackWalkerHelper.getMethodName(frames.get(0)));
+    }
+
+    @Test
+    public void distinguishesCallSitesByBytecodeIndex() {
+        if (!StackWalkerHelper.isAvailable()) return; // Java 8
+
+        int first = topFrameByteCodeIndexFromAnotherFrame();
+        int second = topFrameByteCodeIndexFromAnotherFrame();
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void findsFirstFrameNotSkipped() {
+        if (!StackWalkerHelper.isAvailable()) return; // Java 8
+
+        final Object finder = StackWalkerHelper.createFrameFinder(new String[]{"java.lang.Thread"});
+        final Object[] frame = new Object[1];
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                frame[0] = StackWalkerHelper.findFrame(finder);
+            }
+        }).run();
+        // The leading agent frames and Thread.run are skipped, the test method is the caller of Thread.run.
+        assertEquals(StackWalkerHelperTest.class.getName(), StackWalkerHelper.getClassName(frame[0]));
+        assertEquals("findsFirstFrameNotSkipped", StackWalkerHelper.getMethodName(frame[0]));
+
+        assertNull(StackWalkerHelper.findFrame(StackWalkerHelper.createFrameFinder(new String[]{""})));
+    }
+
+    // Frames of the agent package are skipped, so use a JDK frame to get a known top of the stack.
+    private static int topFrameByteCodeIndexFromAnotherFrame() {
+        final int[] result = new int[1];
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = StackWalkerHelper.getByteCodeIndex(StackWalkerHelper.getTopFrames(3).get(2));
+            }
+        }).run();
+        return result[0];
+    }
+}